@@ -0,0 +1,127 @@
+package ftpserver;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Data received in block mode (MODE B, RFC 959 3.4.2)
+ *
+ * The stream ends with the block flagged as the end of the file, the data
+ * connection can then carry the next one. A connection closed before that
+ * block means the transfer was aborted. A restart marker is given to the
+ * listener once the data before it was read.
+ **/
+public class BlockInputStream extends FilterInputStream {
+
+    private final DataInputStream in;
+
+    /** Data left in the current block */
+    private int remaining = 0;
+    private boolean eof = false;
+
+    /** Notified of the restart markers, null to ignore them */
+    private final MarkerListener listener;
+
+    /** @param in The data connection, it isn't closed with this stream */
+    public BlockInputStream(InputStream in) {
+        this(in, null);
+    }
+
+    /** @param in The data connection, it isn't closed with this stream
+     * @param listener Notified of the restart markers, null to ignore them */
+    public BlockInputStream(InputStream in, MarkerListener listener) {
+        super(in);
+        this.in = new DataInputStream(in);
+        this.listener = listener;
+    }
+
+    /** Read the next block header, and the markers before the next data
+     *
+     * @return Whether there is data left in the file */
+    private boolean nextBlock() throws IOException {
+        while (remaining == 0) {
+            if (eof) return false;
+
+            int descriptor;
+            int count;
+            try {
+                descriptor = in.readUnsignedByte();
+                count = in.readUnsignedShort();
+            } catch (EOFException e) {
+                throw new EOFException("Data connection closed before the end of the file");
+            }
+
+            eof = (descriptor & BlockOutputStream.EOF) != 0;
+
+            if ((descriptor & BlockOutputStream.RESTART_MARKER) != 0) {
+                byte[] data = new byte[count];
+                in.readFully(data);
+                if (listener != null) listener.onMarker(new String(data, StandardCharsets.US_ASCII));
+            } else {
+                remaining = count;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextBlock()) return -1;
+
+        int b = in.read();
+        if (b < 0) throw new EOFException("Data connection closed before the end of the file");
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!nextBlock()) return -1;
+
+        int read = in.read(b, off, Math.min(len, remaining));
+        if (read < 0) throw new EOFException("Data connection closed before the end of the file");
+        remaining -= read;
+        return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return Math.min(remaining, in.available());
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        int read;
+        while (skipped < n && (read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped))) > 0)
+            skipped += read;
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /** Skip to the end of the file, the data connection stays open */
+    @Override
+    public void close() throws IOException {
+        while (nextBlock()) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) throw new EOFException("Data connection closed before the end of the file");
+            remaining -= skipped;
+        }
+    }
+
+    @FunctionalInterface
+    public interface MarkerListener {
+        /** @param marker The restart marker, every byte before it was read */
+        void onMarker(String marker) throws IOException;
+    }
+}
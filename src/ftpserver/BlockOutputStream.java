@@ -0,0 +1,109 @@
+package ftpserver;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Data sent in block mode (MODE B, RFC 959 3.4.2)
+ *
+ * Every block starts with a descriptor byte and a 16 bits byte count. The end
+ * of the file is flagged in the last block, so closing the stream ends the
+ * file without closing the data connection. Restart markers giving the offset
+ * in the data are inserted at regular intervals.
+ **/
+public class BlockOutputStream extends FilterOutputStream {
+
+    /** Descriptor flags */
+    public static final int EOR = 0x80;
+    public static final int EOF = 0x40;
+    public static final int ERRORS = 0x20;
+    public static final int RESTART_MARKER = 0x10;
+
+    public static final int MAX_BLOCK_SIZE = 0xffff;
+
+    private static final int HEADER_SIZE = 3;
+
+    /** Header and data of the block being filled */
+    private final byte[] block = new byte[HEADER_SIZE + MAX_BLOCK_SIZE];
+    private int length = 0;
+
+    /** Offset of the data written, from the start of the file */
+    private long offset;
+    private final long markerInterval;
+    private long nextMarker;
+
+    private boolean closed = false;
+
+    /** @param out The data connection, it isn't closed with this stream
+     * @param start Offset in the file where the data starts
+     * @param markerInterval Number of bytes between two restart markers, 0 for none */
+    public BlockOutputStream(OutputStream out, long start, long markerInterval) {
+        super(out);
+        offset = start;
+        this.markerInterval = markerInterval;
+        nextMarker = markerInterval > 0 ? start + markerInterval : Long.MAX_VALUE;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (length == MAX_BLOCK_SIZE) writeBlock(0);
+        block[HEADER_SIZE + length++] = (byte) b;
+        offset++;
+        if (offset >= nextMarker) writeMarker();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (length == MAX_BLOCK_SIZE) writeBlock(0);
+
+            // The data before a marker ends the block
+            int chunk = (int) Math.min(Math.min(len, MAX_BLOCK_SIZE - length), nextMarker - offset);
+            System.arraycopy(b, off, block, HEADER_SIZE + length, chunk);
+            length += chunk;
+            offset += chunk;
+            off += chunk;
+            len -= chunk;
+
+            if (offset >= nextMarker) writeMarker();
+        }
+    }
+
+    private void writeBlock(int descriptor) throws IOException {
+        block[0] = (byte) descriptor;
+        block[1] = (byte) (length >>> 8);
+        block[2] = (byte) length;
+
+        out.write(block, 0, HEADER_SIZE + length);
+        length = 0;
+    }
+
+    /** Send the data written so far, then a marker for the offset after it */
+    private void writeMarker() throws IOException {
+        if (length > 0) writeBlock(0);
+
+        byte[] marker = Long.toString(offset).getBytes(StandardCharsets.US_ASCII);
+        out.write(new byte[]{RESTART_MARKER, 0, (byte) marker.length});
+        out.write(marker);
+
+        nextMarker = offset + markerInterval;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (length > 0) writeBlock(0);
+        out.flush();
+    }
+
+    /** Send the last block, flagged as the end of the file. The data connection stays open */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        writeBlock(EOF);
+        out.flush();
+    }
+}
@@ -6,13 +6,14 @@ import ftpserver.command.Command.CommandFunctionNoArgs;
 import ftpserver.command.Command.CommandFunctionMultiArgs;
 import ftpserver.command.CommandHandler;
 import ftpserver.file.FileHandler;
+import ftpserver.log.CommandEvent;
 import ftpserver.log.Log;
 
 import java.io.*;
 import ftpserver.access.Authenticator;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
 import java.util.*;
 
 /**
@@ -25,7 +26,8 @@ public class ControlConnection implements Closeable {
     public static final String TAG = "ControlConnection";
 
     /** Connection to the client */
-    private Socket conn;
+    private volatile Socket conn;
+    private final InetAddress remoteAddress;
 
     private final BufferedReader reader;
     private final BufferedWriter writer;
@@ -42,11 +44,30 @@ public class ControlConnection implements Closeable {
     private final FileHandler fh;
 
     private boolean isStopped = false;
+
+    /** Last reply sent from the control thread, recorded with the command that sent it */
+    private int replyCode;
+
+    /** Time allowed without commands or transfers */
     private final int timeout;
-    private long lastUpdate;
+    private volatile long lastUpdate = System.currentTimeMillis();
+
+    /** Start of the current login, the session is closed if it takes longer than the login timeout */
+    private volatile long loginStart = System.currentTimeMillis();
+
+    /** Check the login and idle deadlines, rescheduled for the next one */
+    private volatile TimingWheel.Timeout sessionTimeout;
+
+    /** Reply sent by the control thread before closing the session, set when a deadline passed */
+    private volatile String expired;
+
+    /** Time given to the control thread to send the reply of an expired session before its socket is closed */
+    private static final long EXPIRE_REPLY_TIMEOUT = 5000;
 
     /** The list of all the commands supported*/
     private final Map<String, Command> commands = new HashMap<>();
+    /** The list of all the SITE commands supported*/
+    private final Map<String, Command> siteCommands = new HashMap<>();
     /** The list of all the features supported*/
     private final List<String> features = new ArrayList<>();
     /** The list of all the options supported*/
@@ -56,10 +77,14 @@ public class ControlConnection implements Closeable {
                              int timeout, int bufferSize, FileHandler handler) throws IOException {
         this.server = server;
         conn = socket;
+        remoteAddress = socket.getInetAddress();
         this.auth = auth;
         this.fh = handler;
         this.timeout = timeout;
 
+        // Replies are small writes flushed one at a time
+        socket.setTcpNoDelay(server.getSocketProfile().isTcpNoDelay());
+
         cmdHandler = new CommandHandler(this);
         dataConnHandler = new DataConnectionHandler(this, fh, bufferSize);
 
@@ -67,14 +92,13 @@ public class ControlConnection implements Closeable {
         reader = new BufferedReader(new InputStreamReader(in));
         writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
 
-        conn.setSoTimeout(timeout);
-
         ctrlThread = new ControlThread();
         ctrlThread.setDaemon(true);
         ctrlThread.start();
 
         registerCommand("FEAT", this::feat, "FEAT", false);
         registerCommand("OPTS", this::opts, "OPTS <option> [value]");
+        registerCommand("SITE", this::site, "SITE <command> [arguments]");
 
         registerFeature("feat");
         registerFeature("UTF-8");
@@ -90,6 +114,63 @@ public class ControlConnection implements Closeable {
         dataConnHandler.registerCommands();
 
         sendResponse(220, "Service ready");
+        scheduleTimeout(System.currentTimeMillis());
+    }
+
+    /** Expire the session if the login or the idle deadline passed, otherwise check again at the next deadline.
+     * It runs on the wheel thread shared by every session, so it never waits for the client */
+    private void checkTimeout() {
+        Socket socket = conn;
+        if (socket == null || expired != null) return;
+
+        long now = System.currentTimeMillis();
+        long loginTimeout = server.getLoginTimeout();
+
+        if (!cmdHandler.getAuthenticated() && loginTimeout > 0 && now - loginStart >= loginTimeout) {
+            expire(socket, "Login timeout, closing control connection");
+            return;
+        }
+
+        // Transfers in progress keep the session alive
+        if (!dataConnHandler.getDataConnections().isEmpty()) onUpdate();
+
+        if (timeout > 0 && now - lastUpdate >= timeout) {
+            expire(socket, "Idle timeout, closing control connection");
+            return;
+        }
+
+        scheduleTimeout(now);
+    }
+
+    /** Let the control thread reply and close the session, the socket is closed anyway if the reply can't be sent */
+    private void expire(Socket socket, String reason) {
+        expired = reason;
+
+        // The control thread stops reading the commands and sees the end of the stream
+        try {
+            socket.shutdownInput();
+        } catch (IOException | UnsupportedOperationException ignored) {}
+
+        // A client that doesn't read its replies would keep the control thread writing
+        server.getTimingWheel().schedule(EXPIRE_REPLY_TIMEOUT, () -> {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        });
+    }
+
+    private void scheduleTimeout(long now) {
+        long next = Long.MAX_VALUE;
+
+        if (!cmdHandler.getAuthenticated() && server.getLoginTimeout() > 0)
+            next = loginStart + server.getLoginTimeout();
+        if (timeout > 0)
+            next = Math.min(next, lastUpdate + timeout);
+
+        // Check at least once a minute, a login may start meanwhile
+        next = Math.min(next, now + 60000);
+
+        sessionTimeout = server.getTimingWheel().schedule(next - now, this::checkTimeout);
     }
 
     /** Listen for incoming commands */
@@ -99,13 +180,15 @@ public class ControlConnection implements Closeable {
             return;
         }
 
+        if (expired != null) {
+            sendResponse(421, expired);
+            close();
+            return;
+        }
+
         String request;
         try {
             request = reader.readLine();
-        } catch (SocketTimeoutException e) {
-            if (dataConnHandler.getDataConnections().isEmpty() && (System.currentTimeMillis() - lastUpdate) >= timeout)
-                close();
-            return;
         } catch (SocketException ex) {
             close();
             return;
@@ -115,12 +198,14 @@ public class ControlConnection implements Closeable {
         }
 
         if (request == null) {
-            close();
+            // An expired session replies first
+            if (expired == null) close();
             return;
         }
 
         if (request.isEmpty()) return;
 
+        onUpdate();
         System.out.println(request);
         processRequest(request);
     }
@@ -130,17 +215,53 @@ public class ControlConnection implements Closeable {
 
         if (firstSpace < 0) firstSpace = request.length();
 
-        Command cmd = commands.get(request.substring(0, firstSpace).toUpperCase());
+        String label = request.substring(0, firstSpace).toUpperCase();
+        Command cmd = commands.get(label);
 
         if (cmd == null) {
             sendResponse(502, "Unknown command");
             return;
         }
 
-        processCommand(cmd, request.length() != firstSpace ? request.substring(firstSpace + 1) : "");
+        processCommand(label, cmd, request.length() != firstSpace ? request.substring(firstSpace + 1) : "");
+    }
+
+    /** Execute a command given to SITE */
+    private void site(String request) {
+        int firstSpace = request.indexOf(' ');
+
+        if (firstSpace < 0) firstSpace = request.length();
+
+        String label = request.substring(0, firstSpace).toUpperCase();
+        Command cmd = siteCommands.get(label);
+
+        if (label.equals("HELP")) {
+            StringBuilder builder = new StringBuilder();
+            for (String command : siteCommands.keySet())
+                builder.append(command).append(", ");
+            sendResponse(214, builder.toString());
+            return;
+        }
+
+        if (cmd == null) {
+            sendResponse(504, "Unknown SITE command");
+            return;
+        }
+
+        processCommand("SITE " + label, cmd, request.length() != firstSpace ? request.substring(firstSpace + 1) : "");
+    }
+
+    private void processCommand(String label, Command cmd, String args) {
+        CommandEvent event = new CommandEvent();
+        event.begin();
+        replyCode = 0;
+
+        runCommand(cmd, args);
+
+        event.finish(label, replyCode);
     }
 
-    private void processCommand(Command cmd, String args) {
+    private void runCommand(Command cmd, String args) {
 
         if (cmd.needAuthentication() && !cmdHandler.getAuthenticated()) {
             sendResponse(530, "Needs authentication");
@@ -164,23 +285,65 @@ public class ControlConnection implements Closeable {
      * @param code The code of the response
      * @param response The response message */
     public void sendResponse(int code, String response) {
-        if (conn.isClosed()) return;
+        Socket conn = this.conn;
+        if (conn == null || conn.isClosed()) return;
 
         if (response == null || response.isEmpty())
             response = "Unknown";
 
+        if (Thread.currentThread() == ctrlThread) replyCode = code;
+
         try {
-            if (response.charAt(0) == '-')
-                writer.write(code + response + "\r\n"); //multi-line
-            else
-                writer.write(code + " " + response + "\r\n"); //single-line
-            writer.flush();
+            synchronized (writer) {
+                if (response.charAt(0) == '-')
+                    writer.write(code + response + "\r\n"); //multi-line
+                else
+                    writer.write(code + " " + response + "\r\n"); //single-line
+                writer.flush();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
         Log.i(TAG, "Response sent: " + code + " " + response);
     }
 
+    /** Send a multi-line response whose lines are produced while it is written,
+     * so a long response is never held in memory
+     *
+     * @param first The text of the first line
+     * @param lines The lines between the first and the last one
+     * @param last The text of the last line */
+    public void sendResponse(int code, String first, Iterator<String> lines, String last) {
+        Socket conn = this.conn;
+        if (conn == null || conn.isClosed()) return;
+
+        if (Thread.currentThread() == ctrlThread) replyCode = code;
+
+        int count = 0;
+        try {
+            // The other responses wait for the end of this one
+            synchronized (writer) {
+                writer.write(code + "-" + first + "\r\n");
+
+                while (lines.hasNext()) {
+                    String line = lines.next();
+
+                    // A line starting with digits could be taken for the end of the response
+                    if (!line.isEmpty() && Character.isDigit(line.charAt(0))) writer.write(' ');
+                    writer.write(line);
+                    writer.write("\r\n");
+                    count++;
+                }
+
+                writer.write(code + " " + last + "\r\n");
+                writer.flush();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Log.i(TAG, "Response sent: " + code + " " + first + " (" + count + " lines)");
+    }
+
     public void onUpdate() {
         lastUpdate = System.currentTimeMillis();
     }
@@ -209,6 +372,18 @@ public class ControlConnection implements Closeable {
         commands.put(label.toUpperCase(), new Command(cmd, helpText, needAuth));
     }
 
+    public void registerSiteCommand(String label, CommandFunction cmd, String helpText) {
+        siteCommands.put(label.toUpperCase(), new Command(cmd, helpText, true));
+    }
+
+    public void registerSiteCommand(String label, CommandFunctionNoArgs cmd, String helpText) {
+        siteCommands.put(label.toUpperCase(), new Command(cmd, helpText, true));
+    }
+
+    public void registerSiteCommand(String label, CommandFunctionMultiArgs cmd, String helpText) {
+        siteCommands.put(label.toUpperCase(), new Command(cmd, helpText, true));
+    }
+
     public void registerFeature(String feat) {
         if (!features.contains(feat))
             features.add(feat);
@@ -225,6 +400,7 @@ public class ControlConnection implements Closeable {
     public void resetConnection() {
         dataConnHandler.resetConnection();
         cmdHandler.resetConnection();
+        loginStart = System.currentTimeMillis();
     }
 
     private void feat() {
@@ -266,7 +442,14 @@ public class ControlConnection implements Closeable {
         return  "Version: " + FTPServer.VERSION + "\r\n" +
                 "Connected to " + serverAddress + "\r\n" +
                 "Logged in " + user + "\r\n" +
-                "TYPE: Binary; STRUcture: File; transfer MODE: Stream;" + "\r\n";
+                "TYPE: " + (dataConnHandler.isAscii() ? "ASCII" : "Binary") + "; STRUcture: File; transfer MODE: " +
+                (dataConnHandler.isBlockMode() ? "Block" : "Stream") + ";" + "\r\n" +
+                dataConnHandler.getTuner() + "\r\n";
+    }
+
+    /** @return The address of the client */
+    public InetAddress getRemoteAddress() {
+        return remoteAddress;
     }
 
     public Authenticator getAuthenticator(){
@@ -316,10 +499,16 @@ public class ControlConnection implements Closeable {
     }
 
     @Override
-    public void close() {
+    public synchronized void close() {
 
         if (!isStopped) stop();
 
+        if (sessionTimeout != null) sessionTimeout.cancel();
+
+        try {
+            dataConnHandler.close();
+        } catch (IOException ignored) {}
+
         if (conn != null) {
             try {
                 conn.close();
@@ -334,7 +523,8 @@ public class ControlConnection implements Closeable {
 
         @Override
         public void run() {
-            while (conn != null && !conn.isClosed()) {
+            Socket socket;
+            while ((socket = conn) != null && !socket.isClosed()) {
                 listen();
             }
 
@@ -1,16 +1,31 @@
 package ftpserver;
 
 import ftpserver.command.TransferException;
+import ftpserver.file.AsciiOutputStream;
+import ftpserver.file.DigestAlgorithm;
+import ftpserver.file.DirectoryArchive;
+import ftpserver.file.DigestAlgorithm.Hasher;
 import ftpserver.file.FileHandler;
+import ftpserver.file.FileStat;
+import ftpserver.file.QuotaExceededException;
+import ftpserver.file.ReadAheadInputStream;
+import ftpserver.log.Log;
+import ftpserver.log.TransferEvent;
+import ftpserver.log.TransferLog;
+import ftpserver.log.TransferRecord;
+import ftpserver.log.UsageTracker;
 
 import java.io.*;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayDeque;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  *  Data Connection
@@ -19,6 +34,8 @@ import java.util.Date;
  **/
 public class DataConnectionHandler implements Closeable {
 
+    public static final String TAG = "DataConnectionHandler";
+
     private String activeClientAddress;
     private int clientPort = 0;
 
@@ -27,22 +44,43 @@ public class DataConnectionHandler implements Closeable {
 
     private ServerSocket passiveServer;
     private boolean passive = false;
-    private final int bufferSize;
+
+    /** Socket options and chunk sizes adapted to the connection */
+    private final TransferTuner tuner;
+
+    /** When the passive address was sent, the client connecting to it gives a round trip time */
+    private long passiveStart = 0;
 
     private long startByte;
 
-    private long transferredByte;
+    /** TYPE A, the line endings are translated */
+    private boolean ascii = false;
+
+    /** MODE B, the data connection is kept open between the transfers */
+    private volatile boolean blockMode = false;
+
+    /** Data connection kept open by the last transfer in block mode, null if none */
+    private Socket openConnection;
+
+    /** Space reserved by ALLO for the next file received */
+    private long allocateSize;
+
+    private volatile long transferredByte;
+
+    /** Close the passive socket if no data connection is accepted in time */
+    private TimingWheel.Timeout passiveTimeout;
 
     private final ArrayDeque<Socket> dataConnections = new ArrayDeque<>();
 
     public DataConnectionHandler(ControlConnection conn, FileHandler handler) {
-        this(conn, handler, 1024);
+        this(conn, handler, 64 * 1024);
     }
 
+    /** @param bufferSize Size of the chunks transferred until the throughput of the connection is known */
     public DataConnectionHandler(ControlConnection conn, FileHandler handler, int bufferSize) {
         this.conn = conn;
         fh = handler;
-        this.bufferSize = bufferSize;
+        tuner = new TransferTuner(conn.getServer().getSocketProfile(), bufferSize);
     }
 
     public ArrayDeque<Socket> getDataConnections() {
@@ -53,11 +91,62 @@ public class DataConnectionHandler implements Closeable {
         return transferredByte;
     }
 
+    public TransferTuner getTuner() {
+        return tuner;
+    }
+
     private Socket createDataSocket() throws IOException {
-        if (passive && passiveServer != null)
-            return passiveServer.accept();
+        // Block mode ends the files without closing the connection, the next transfer reuses it
+        Socket open = takeOpenConnection();
+        if (open != null) return open;
+
+        if (passive && passiveServer != null) {
+            ServerSocket server = passiveServer;
+            if (passiveTimeout == null) passiveTimeout = closeOnTimeout(server);
 
-        return new Socket(activeClientAddress, clientPort);
+            Socket socket;
+            try {
+                socket = server.accept();
+            } finally {
+                cancelPassiveTimeout();
+            }
+
+            // The reply reached the client and its connection came back, at least a round trip each
+            if (passiveStart > 0) tuner.onRoundTrip((System.nanoTime() - passiveStart) / 2);
+            passiveStart = 0;
+
+            tuner.configure(socket);
+            return socket;
+        }
+
+        return tuner.connect(activeClientAddress, clientPort);
+    }
+
+    /** Close a passive socket if no data connection is accepted within the passive timeout
+     *
+     * @return The timeout, null if disabled */
+    private TimingWheel.Timeout closeOnTimeout(ServerSocket server) {
+        long timeout = conn.getServer().getPassiveTimeout();
+        if (timeout <= 0) return null;
+
+        return conn.getServer().getTimingWheel().schedule(timeout, () -> {
+            try {
+                server.close();
+            } catch (IOException ignored) {}
+        });
+    }
+
+    private synchronized void cancelPassiveTimeout() {
+        if (passiveTimeout != null) {
+            passiveTimeout.cancel();
+            passiveTimeout = null;
+        }
+    }
+
+    /** @return The watch to cancel when the transfer ends, null if the data stall timeout is disabled */
+    private StallWatch watchStall(Socket socket) {
+        long stallTimeout = conn.getServer().getDataStallTimeout();
+        return stallTimeout > 0 ? new StallWatch(socket, stallTimeout) : null;
     }
 
     public void resetConnection() {
@@ -65,6 +154,9 @@ public class DataConnectionHandler implements Closeable {
         clientPort = 0;
         passiveServer = null;
         passive = false;
+        ascii = false;
+        blockMode = false;
+        closeOpenConnection();
         transferredByte = 0;
     }
 
@@ -77,12 +169,36 @@ public class DataConnectionHandler implements Closeable {
         conn.registerCommand("REST", this::rest, "REST <byte-number>");
         conn.registerCommand("APPE", this::appe, "APPE <pathname>");
         conn.registerCommand("STOU", this::stou, "STOU [pathname]");
+        conn.registerCommand("ALLO", this::allo, "ALLO <decimal-integer> [R <decimal-integer>]");
+    }
+
+    /** @param ascii Whether the line endings are translated (TYPE A), otherwise the data is sent as it is */
+    public void setAscii(boolean ascii) {
+        this.ascii = ascii;
+    }
+
+    public boolean isAscii() {
+        return ascii;
+    }
+
+    /** @param blockMode Whether the data is sent in blocks (MODE B), otherwise the end of the connection ends the file */
+    public void setBlockMode(boolean blockMode) {
+        this.blockMode = blockMode;
+        if (!blockMode) closeOpenConnection();
+    }
+
+    public boolean isBlockMode() {
+        return blockMode;
     }
 
     public void createSenderThread(File file) {
+        // The transfer options are read now, the next commands may change them
+        long start = startByte;
+        boolean ascii = this.ascii;
+
         new Thread(() -> {
             try {
-                sendFile(file);
+                sendFile(file, start, ascii);
                 conn.sendResponse(226, "File transferred successfully");
             } catch (TransferException e) {
                 conn.sendResponse(e.getResponseCode(), e.getMessage());
@@ -94,57 +210,197 @@ public class DataConnectionHandler implements Closeable {
         }).start();
     }
 
+    /** Stream an archive of a directory, read as it is sent
+     *
+     * @param file The name of the archive, recorded in the transfer log */
+    private void createArchiveSenderThread(File dir, DirectoryArchive.Format format, File file) {
+        DirectoryArchive archive = new DirectoryArchive(fh, dir, format);
+
+        new Thread(() -> {
+            try {
+                sendData(archive::write, file);
+                conn.sendResponse(226, "Archive transferred successfully");
+            } catch (TransferException e) {
+                conn.sendResponse(e.getResponseCode(), e.getMessage());
+            } catch (Exception e) {
+                conn.sendResponse(421, e.getMessage());
+            }
+        }).start();
+    }
+
     public void sendFile(File file) throws IOException {
+        sendFile(file, startByte, ascii);
+    }
+
+    /** Send a file to the data connection
+     *
+     * @param file The file
+     * @param start Where the transfer restarts, in the data sent
+     * @param ascii Whether the line endings are translated to CRLF */
+    public void sendFile(File file, long start, boolean ascii) throws IOException {
 
         InputStream in = null;
         try {
-            in = fh.getFileInputStream(file, startByte);
+            // The translated offset doesn't match the file offset, the data before it is skipped once translated
+            in = fh.getFileInputStream(file, ascii ? 0 : start);
         } catch (FileNotFoundException e) {
             e.printStackTrace();
         }
 
         if (in == null) return;
 
-        sendData(in);
+        // The storage is read while the previous chunks are sent
+        int readAhead = conn.getServer().getReadAhead();
+        if (readAhead > 0) in = new ReadAheadInputStream(in, readAhead, Math.max(tuner.getChunkSize(), 64 * 1024));
+
+        sendData(in, ascii, start, file);
     }
 
     public void sendData(InputStream in) throws TransferException {
+        sendData(in, false, 0, null);
+    }
+
+    /** @param start Where the transfer restarts, in the data sent
+     * @param file The file sent, recorded in the transfer log, null if the data isn't a file */
+    private void sendData(InputStream in, boolean ascii, long start, File file) throws TransferException {
+
+        TransferEvent event = new TransferEvent();
+        event.begin();
+        boolean completed = false;
+        boolean block = blockMode;
+        long startTime = System.currentTimeMillis();
 
         Socket socket = null;
+        StallWatch stall = null;
         try {
             socket = createDataSocket();
             dataConnections.add(socket);
+            stall = watchStall(socket);
             OutputStream out = socket.getOutputStream();
+            if (block) out = new BlockOutputStream(out, start, conn.getServer().getRestartMarkerInterval());
+            if (ascii) out = new AsciiOutputStream(out, true, start);
 
-            byte[] buffer = new byte[bufferSize];
+            TransferTuner.Meter meter = tuner.start();
+            byte[] buffer = new byte[meter.getChunkSize()];
 
             int length;
             while ((length = in.read(buffer)) != -1) {
                 write(out, buffer, length);
                 transferredByte += length;
+                if (meter.add(length)) buffer = new byte[meter.getChunkSize()];
             }
 
             out.flush();
+            meter.finish();
             in.close();
             out.close();
-            socket.close();
+            release(socket, block);
+            completed = true;
         } catch (SocketException e) {
             throw new TransferException(426, "Connection closed, transfer aborted");
         } catch (IOException e) {
+            // A read error, the client must not take the data sent as the whole file
             e.printStackTrace();
+            throw new TransferException(451, "Transfer aborted: " + e.getMessage());
         } finally {
+            // The file is released even if the transfer failed
+            if (!completed) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {}
+            }
+            if (stall != null) stall.cancel();
             conn.onUpdate();
-            if (socket != null)
+            if (socket != null) {
                 dataConnections.remove(socket);
+                // The connection is closed to abort, a block mode one otherwise ends the file itself
+                if (!completed) closeQuietly(socket);
+            }
+            event.finish(true, ascii, passive, transferredByte, !completed);
+            if (file != null) recordTransfer(file, startTime, true, ascii, completed);
             transferredByte = 0;
         }
     }
 
+    /** Add a file transfer to the transfer log and to the usage tracker of the server, if any */
+    private void recordTransfer(File file, long startTime, boolean sent, boolean ascii, boolean completed) {
+        TransferLog log = conn.getServer().getTransferLog();
+        UsageTracker tracker = conn.getServer().getUsageTracker();
+        if (log == null && tracker == null) return;
+
+        InetAddress address = conn.getRemoteAddress();
+        String host = address != null ? address.getHostAddress() : "-";
+        String path = "/" + fh.getPath(file);
+
+        if (log != null)
+            log.record(new TransferRecord(startTime, host, transferredByte, path, ascii, sent,
+                    conn.getCommandHandler().getUsername(), completed));
+
+        if (tracker != null) {
+            if (sent) tracker.fileSent(path, transferredByte);
+            tracker.clientTransferred(host, transferredByte);
+        }
+    }
+
+    /** Close a data connection at the end of a transfer, or keep it for the next one in block mode */
+    private void release(Socket socket, boolean block) throws IOException {
+        if (!block) {
+            socket.close();
+            return;
+        }
+
+        Socket previous;
+        synchronized (this) {
+            previous = openConnection;
+            openConnection = socket;
+        }
+        if (previous != null && previous != socket) closeQuietly(previous);
+    }
+
+    /** @return The data connection kept by the last transfer in block mode, null if none or closed */
+    private synchronized Socket takeOpenConnection() {
+        Socket socket = openConnection;
+        openConnection = null;
+
+        return socket != null && !socket.isClosed() && blockMode ? socket : null;
+    }
+
+    /** Close the data connection kept for the next transfer, if any */
+    private void closeOpenConnection() {
+        Socket socket;
+        synchronized (this) {
+            socket = openConnection;
+            openConnection = null;
+        }
+        if (socket != null) closeQuietly(socket);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+
     public void createReceiverThread(File file) {
+        createReceiverThread(file, startByte, true);
+    }
+
+    /** @param start Where the data is written
+     * @param restart Whether start is an offset given by REST, in the data received */
+    private void createReceiverThread(File file, long start, boolean restart) {
+        // The transfer options are read now, the next commands may change them
+        boolean ascii = this.ascii;
+
         new Thread(() -> {
             try {
-                receiveFile(file);
-                conn.sendResponse(226, "File transferred successfully");
+                long offset = ascii && restart && start > 0 ? fh.toFileOffset(file, start) : start;
+                Map<DigestAlgorithm, String> digests = receiveFile(file, offset, ascii);
+
+                StringBuilder response = new StringBuilder("File transferred successfully");
+                for (Map.Entry<DigestAlgorithm, String> digest : digests.entrySet())
+                    response.append("; ").append(digest.getKey().getName()).append('=').append(digest.getValue());
+
+                conn.sendResponse(226, response.toString());
             } catch (TransferException e) {
                 conn.sendResponse(e.getResponseCode(), e.getMessage());
             } catch (IOException e) {
@@ -155,50 +411,175 @@ public class DataConnectionHandler implements Closeable {
         }).start();
     }
 
-    public void receiveFile(File file) throws IOException {
+    /** Receive a file from the data connection
+     *
+     * @param file The file where the data is written
+     * @param start Where the data is written in the file
+     * @param ascii Whether the line endings are translated to LF
+     * @return The digests of the file computed while receiving it, empty if it was received only partially */
+    public Map<DigestAlgorithm, String> receiveFile(File file, long start, boolean ascii) throws IOException {
+        Map<DigestAlgorithm, String> digests = new LinkedHashMap<>();
+
+        // Appended data is written at the end of the file, so only new files are preallocated.
+        // The size of translated data isn't known in advance
+        long allocate = start <= 0 && !ascii ? allocateSize : 0;
+        allocateSize = 0;
+
+        // Only new content can be written aside, resumed transfers need the existing data
+        boolean atomic = conn.getServer().isAtomicUploads() && start <= 0;
+        File target = atomic ? fh.createTempFile(file) : file;
 
         OutputStream out = null;
         try {
-            out = fh.getFileOutputStream(file, startByte);
+            out = fh.getFileOutputStream(target, start);
+            if (allocate > 0) fh.allocate(target, allocate);
         } catch (FileNotFoundException e) {
             e.printStackTrace();
         }
 
-        if (out == null) return;
+        if (out == null) {
+            if (atomic) fh.delete(target);
+            return digests;
+        }
+
+        // Digests are computed only when the whole file is received as it is
+        DigestAlgorithm[] algorithms = start <= 0 && !ascii ? conn.getServer().getUploadDigests() : new DigestAlgorithm[0];
+        Hasher[] hashers = new Hasher[algorithms.length];
+        for (int i = 0; i < algorithms.length; i++)
+            hashers[i] = algorithms[i].newHasher();
+
+        if (ascii) out = new AsciiOutputStream(out, false, 0);
+
+        long received;
+        try {
+            received = receiveData(out, hashers, ascii, start, file);
+
+            // Drop the space reserved but not used
+            if (allocate > received)
+                fh.truncate(target, received);
 
-        receiveData(out);
+            persist(target, file, atomic);
+        } finally {
+            out.close();
+            if (atomic) fh.delete(target);
+        }
+
+        if (hashers.length > 0 && fh.size(file) == received) {
+            long lastModified = fh.getLastModified(file);
+            String path = fh.getPath(file);
+
+            for (int i = 0; i < hashers.length; i++) {
+                String digest = hashers[i].digest();
+                digests.put(algorithms[i], digest);
+                fh.getDigestCache().put(path, algorithms[i], 0, received, received, lastModified, digest);
+            }
+        }
+
+        return digests;
+    }
+
+    /** Force a received file to disk as required by the server durability policy
+     *
+     * @param target The file where the data was written
+     * @param file The final file
+     * @param atomic Whether target is a temporary file that needs to replace file */
+    private void persist(File target, File file, boolean atomic) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+
+        switch (conn.getServer().getDurability()) {
+            case FSYNC:
+                fh.sync(target);
+                if (atomic) fh.commit(target, file);
+                fh.syncDirectory(dir);
+                break;
+            case GROUP_COMMIT:
+                conn.getServer().getGroupCommit().commit(target, atomic ? () -> fh.commit(target, file) : null, dir);
+                break;
+            default:
+                if (atomic) fh.commit(target, file);
+        }
     }
 
     public void receiveData(OutputStream out) throws TransferException {
+        receiveData(out, new Hasher[0]);
+    }
+
+    /** Receive data from the data connection
+     *
+     * @param out Where the data is written
+     * @param hashers Digests updated with the data received
+     * @return The number of bytes received */
+    public long receiveData(OutputStream out, Hasher[] hashers) throws TransferException {
+        return receiveData(out, hashers, false, 0, null);
+    }
+
+    /** @param ascii Whether out translates the line endings, recorded with the transfer
+     * @param start Where the data is written in the file, given back by the restart markers
+     * @param file The file received, recorded in the transfer log, null if the data isn't a file */
+    private long receiveData(OutputStream out, Hasher[] hashers, boolean ascii, long start, File file) throws TransferException {
+
+        long received = 0;
+        TransferEvent event = new TransferEvent();
+        event.begin();
+        boolean completed = false;
+        boolean block = blockMode;
+        long startTime = System.currentTimeMillis();
 
         Socket socket = null;
+        StallWatch stall = null;
         try {
             socket = createDataSocket();
             dataConnections.add(socket);
+            stall = watchStall(socket);
             InputStream in = socket.getInputStream();
+            // Every byte before a marker was received, the reply lets the client restart after it
+            if (block) in = new BlockInputStream(in, ascii ? null : marker -> {
+                out.flush();
+                conn.sendResponse(110, "MARK " + marker + " = " + (start + transferredByte));
+            });
 
-            byte[] buffer = new byte[bufferSize];
+            TransferTuner.Meter meter = tuner.start();
+            byte[] buffer = new byte[meter.getChunkSize()];
 
             int length;
             while ((length = in.read(buffer)) != -1) {
                 write(out, buffer, length);
+                for (Hasher hasher : hashers)
+                    hasher.update(buffer, 0, length);
                 transferredByte += length;
+                received += length;
+                if (meter.add(length)) buffer = new byte[meter.getChunkSize()];
             }
 
             out.flush();
+            meter.finish();
             in.close();
             out.close();
-            socket.close();
+            release(socket, block);
+            completed = true;
         } catch (SocketException e) {
             throw new TransferException(426, "Connection closed, transfer aborted");
+        } catch (QuotaExceededException e) {
+            // Stop the client sending the rest
+            if (socket != null) closeQuietly(socket);
+            throw new TransferException(552, e.getMessage());
         } catch (IOException e) {
             e.printStackTrace();
+            throw new TransferException(451, "Transfer aborted: " + e.getMessage());
         } finally {
+            if (stall != null) stall.cancel();
             conn.onUpdate();
-            if (socket != null)
+            if (socket != null) {
                 dataConnections.remove(socket);
+                // The connection is closed to abort, a block mode one otherwise ends the file itself
+                if (!completed) closeQuietly(socket);
+            }
+            event.finish(false, ascii, passive, transferredByte, !completed);
+            if (file != null) recordTransfer(file, startTime, false, ascii, completed);
             transferredByte = 0;
         }
+
+        return received;
     }
 
     private void write(OutputStream out, byte[] data, int length) throws IOException {
@@ -207,31 +588,156 @@ public class DataConnectionHandler implements Closeable {
 
     public void sendData(byte[] data) throws TransferException {
 
+        TransferEvent event = new TransferEvent();
+        event.begin();
+        boolean completed = false;
+        boolean block = blockMode;
+
         Socket socket = null;
+        StallWatch stall = null;
         try {
             socket = createDataSocket();
             dataConnections.add(socket);
+            stall = watchStall(socket);
             OutputStream out = socket.getOutputStream();
+            if (block) out = new BlockOutputStream(out, 0, 0);
 
             write(out, data, data.length);
             transferredByte += data.length;
 
             out.close();
-            socket.close();
+            release(socket, block);
+            completed = true;
         } catch (SocketException e) {
             throw new TransferException(426, "Connection closed, transfer aborted");
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
+            if (stall != null) stall.cancel();
             conn.onUpdate();
-            if (socket != null)
+            if (socket != null) {
                 dataConnections.remove(socket);
+                // The connection is closed to abort, a block mode one otherwise ends the file itself
+                if (!completed) closeQuietly(socket);
+            }
+            event.finish(true, false, passive, transferredByte, !completed);
             transferredByte = 0;
         }
     }
 
+    /** Send data produced while the connection is open
+     *
+     * @param writer Writes the data to the data connection */
+    public void sendData(DataWriter writer) throws TransferException {
+        sendData(writer, null);
+    }
+
+    /** @param file The file sent, recorded in the transfer log, null if the data isn't a file */
+    private void sendData(DataWriter writer, File file) throws TransferException {
+
+        TransferEvent event = new TransferEvent();
+        event.begin();
+        boolean completed = false;
+        boolean block = blockMode;
+        long startTime = System.currentTimeMillis();
+
+        Socket socket = null;
+        StallWatch stall = null;
+        try {
+            socket = createDataSocket();
+            dataConnections.add(socket);
+            stall = watchStall(socket);
+            // Count what is written, the stall watch follows the progress
+            OutputStream raw = block ? new BlockOutputStream(socket.getOutputStream(), 0, 0) : socket.getOutputStream();
+            OutputStream out = new BufferedOutputStream(new FilterOutputStream(raw) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    transferredByte += len;
+                }
+            }, tuner.getChunkSize());
+
+            writer.write(out);
+
+            out.flush();
+            out.close();
+            release(socket, block);
+            completed = true;
+        } catch (SocketException e) {
+            throw new TransferException(426, "Connection closed, transfer aborted");
+        } catch (IOException e) {
+            e.printStackTrace();
+            // The data is produced while sending, it may be incomplete
+            throw new TransferException(451, "Transfer aborted: " + e.getMessage());
+        } finally {
+            if (stall != null) stall.cancel();
+            conn.onUpdate();
+            if (socket != null) {
+                dataConnections.remove(socket);
+                // The connection is closed to abort, a block mode one otherwise ends the file itself
+                if (!completed) closeQuietly(socket);
+            }
+            event.finish(true, false, passive, transferredByte, !completed);
+            if (file != null) recordTransfer(file, startTime, true, false, completed);
+            transferredByte = 0;
+        }
+    }
+
+    /**
+     * Close a data connection when no data is transferred for the data stall timeout.
+     * The progress is checked once per timeout, so a stall is detected after one to two timeouts
+     **/
+    private class StallWatch implements Runnable {
+
+        private final Socket socket;
+        private final long timeout;
+
+        private long lastTransferred = -1;
+        private TimingWheel.Timeout next;
+        private boolean cancelled = false;
+
+        StallWatch(Socket socket, long timeout) {
+            this.socket = socket;
+            this.timeout = timeout;
+            schedule();
+        }
+
+        private synchronized void schedule() {
+            if (!cancelled) next = conn.getServer().getTimingWheel().schedule(timeout, this);
+        }
+
+        @Override
+        public void run() {
+            long transferred = transferredByte;
+
+            if (transferred == lastTransferred) {
+                Log.i(TAG, "Data connection stalled, closing it");
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
+                return;
+            }
+
+            lastTransferred = transferred;
+            schedule();
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (next != null) next.cancel();
+        }
+    }
+
+    @FunctionalInterface
+    public interface DataWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
     @Override
     public void close() throws IOException {
+        cancelPassiveTimeout();
+        closeOpenConnection();
+
         if (passiveServer != null) {
             passiveServer.close();
             passiveServer = null;
@@ -246,6 +752,7 @@ public class DataConnectionHandler implements Closeable {
                 info[2] + "." + info[3];
         clientPort = Integer.parseInt(info[4]) * 256 + Integer.parseInt(info[5]);
         passive = false;
+        closeOpenConnection();
 
         if (passiveServer != null) {
             try {
@@ -258,8 +765,16 @@ public class DataConnectionHandler implements Closeable {
     }
 
     private void pasv() throws IOException {
-        passiveServer = new ServerSocket(0, 5, conn.getServer().getAddress());
+        // A new data connection is asked for, the one kept isn't used anymore
+        closeOpenConnection();
+        cancelPassiveTimeout();
+        if (passiveServer != null) passiveServer.close();
+
+        passiveServer = new ServerSocket();
+        tuner.configure(passiveServer);
+        passiveServer.bind(new InetSocketAddress(conn.getServer().getAddress(), 0), 5);
         passive = true;
+        passiveTimeout = closeOnTimeout(passiveServer);
 
         String host = passiveServer.getInetAddress().getHostAddress();
         int port = passiveServer.getLocalPort();
@@ -273,11 +788,34 @@ public class DataConnectionHandler implements Closeable {
         String addressPort = port / 256 + "," + port % 256;
 
         conn.sendResponse(227, "Entering passive mode(" + address + "," + addressPort + ")");
+        passiveStart = System.nanoTime();
     }
 
     private void retr(String path) throws IOException {
         File file = conn.getCommandHandler().getFile(path);
 
+        // A missing dir.zip or dir.tar is an archive of the directory
+        DirectoryArchive.Format format = fh.exists(file) ? null : DirectoryArchive.Format.of(fh.getName(file));
+        if (format != null) {
+            // The directory must be inside the root too, "...zip" names the parent of its directory.
+            // It is normalized so the entries are never named after ".."
+            String name = fh.getName(file);
+            File dir = fh.findFile(file.getParentFile(), name.substring(0, name.length() - format.getSuffix().length()));
+            dir = fh.findFile(fh.getPath(dir));
+
+            if (fh.isDirectory(dir)) {
+                if (startByte > 0) {
+                    startByte = 0;
+                    conn.sendResponse(554, "Archives can't be restarted");
+                    return;
+                }
+
+                conn.sendResponse(150, "About to send an archive of " + fh.getName(dir));
+                createArchiveSenderThread(dir, format, file);
+                return;
+            }
+        }
+
         conn.sendResponse(150, "About to send file");
         createSenderThread(file);
         startByte = 0;
@@ -317,16 +855,35 @@ public class DataConnectionHandler implements Closeable {
         conn.sendResponse(501, "Number of bytes must be greater than 0");
     }
 
+    private void allo(String[] args) {
+        long size;
+        try {
+            size = Long.parseLong(args[0]);
+        } catch (NumberFormatException e) {
+            conn.sendResponse(501, "Invalid size");
+            return;
+        }
+
+        if (size <= 0) {
+            allocateSize = 0;
+            conn.sendResponse(202, "No storage allocation necessary");
+            return;
+        }
+
+        allocateSize = size;
+        conn.sendResponse(200, "Allocating " + size + " bytes for the next file");
+    }
+
     private void appe(String path) throws IOException {
         File file = conn.getCommandHandler().getFile(path);
 
-        if (file.exists())
-            startByte = fh.size(file);
-        else
-            startByte = 0;
+        // A cached size may be older than the last upload, the data would overwrite its end
+        FileStat stat = fh.statUncached(file);
+        long size = stat.exists() ? stat.getSize() : 0;
 
         conn.sendResponse(150, "Ready to append the file");
-        createReceiverThread(file);
+        createReceiverThread(file, size, false);
+        startByte = 0;
     }
 
     private void stou(String[] path) throws IOException {
@@ -1,16 +1,26 @@
 package ftpserver;
 
 import ftpserver.access.Authenticator;
+import ftpserver.file.DigestAlgorithm;
+import ftpserver.file.Durability;
 import ftpserver.file.FileHandler;
+import ftpserver.file.GroupCommit;
+import ftpserver.log.AcceptEvent;
 import ftpserver.log.Log;
+import ftpserver.log.TransferLog;
+import ftpserver.log.UsageTracker;
 
 import javax.net.ssl.SSLContext;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * FTP Server
@@ -26,14 +36,57 @@ public class FTPServer implements Closeable {
 
     private ServerSocket server;
 
+    /** Sockets accepting the connections, each acceptor has its own when the system supports SO_REUSEPORT */
+    private final List<ServerSocket> servers = new ArrayList<>();
+    private int acceptors = 1;
+
     /** Receive and send commands */
     private ControlConnection control;
     private final Authenticator auth;
     private final FileHandler fh;
 
+    /** Size of the chunks transferred until the throughput of a connection is known */
     private final int bufferSize;
 
-    private ListeningThread listeningThread;
+    /** Socket options of the connections */
+    private SocketProfile socketProfile = new SocketProfile();
+
+    /** Digests computed while receiving files */
+    private DigestAlgorithm[] uploadDigests = new DigestAlgorithm[0];
+
+    /** Write new files to a temporary file moved in place when the transfer completes */
+    private boolean atomicUploads = false;
+
+    /** How received files are forced to disk */
+    private Durability durability = Durability.NONE;
+    private GroupCommit groupCommit;
+
+    /** Audit log of the file transfers, null if disabled */
+    private TransferLog transferLog;
+
+    /** Top files, directories and clients, null if disabled */
+    private UsageTracker usageTracker;
+
+    /** Limits of the recursive listings (LIST -R) */
+    private int listMaxDepth = 16;
+    private int listMaxEntries = 100000;
+
+    /** Timeouts of the sessions, in milliseconds, 0 disables them */
+    private long loginTimeout = 60 * 1000;
+    private int idleTimeout = 5 * 60 * 1000;
+    private long passiveTimeout = 30 * 1000;
+    private long dataStallTimeout = 60 * 1000;
+
+    /** Bytes between two restart markers sent in block mode */
+    private long restartMarkerInterval = 1024 * 1024;
+
+    /** Buffers read ahead of the data connection when sending a file, 0 to read as it is sent */
+    private int readAhead = 0;
+
+    /** Run the timeouts of every session */
+    private TimingWheel timingWheel;
+
+    private final List<ListeningThread> listeningThreads = new ArrayList<>();
 
     private boolean isClosed = true;
 
@@ -42,7 +95,7 @@ public class FTPServer implements Closeable {
     }
 
     public FTPServer (Authenticator auth, FileHandler handler, int port) {
-        this(auth, handler, port, 1024);
+        this(auth, handler, port, 64 * 1024);
     }
 
     public FTPServer (Authenticator auth, FileHandler handler, int port, int bufferSize) {
@@ -56,9 +109,13 @@ public class FTPServer implements Closeable {
     /** Listen for incoming connection requests. */
     public void listen() throws IOException {
         if (server == null) create();
+        if (timingWheel == null) timingWheel = new TimingWheel(100);
 
-        listeningThread = new ListeningThread();
-        listeningThread.start();
+        for (int i = 0; i < acceptors; i++) {
+            ListeningThread listeningThread = new ListeningThread(servers.get(i % servers.size()));
+            listeningThreads.add(listeningThread);
+            listeningThread.start();
+        }
 
         isClosed = false;
         Log.i(TAG, "Started listening");
@@ -71,27 +128,228 @@ public class FTPServer implements Closeable {
         if (port <= 0) throw new IllegalArgumentException("Invalid port number");
         if (server != null) throw new IOException("Server already started");
 
-        server = new ServerSocket(port);
+        server = new ServerSocket();
+        boolean reusePort = acceptors > 1 && server.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+
+        if (reusePort) server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        server.bind(new InetSocketAddress(port));
+        servers.add(server);
+
+        // The system balances the connections between the sockets bound to the same port
+        if (reusePort) {
+            for (int i = 1; i < acceptors; i++) {
+                ServerSocket socket = new ServerSocket();
+                socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                socket.bind(new InetSocketAddress(server.getLocalPort()));
+                servers.add(socket);
+            }
+        }
+
         Log.i(TAG, "Server address: " + InetAddress.getLocalHost().getHostAddress());
+        Log.i(TAG, acceptors + " acceptors on " + servers.size() + " sockets");
     }
 
     /** Create a new control connection for the server */
     public void createControlConnection(Socket socket) throws IOException {
         Log.i(TAG, "Create control connection");
-        //5 minutes
-        int timeout = 5 * 60 * 1000;
-        control = new ControlConnection(this, socket, auth, timeout, bufferSize, fh);
+        control = new ControlConnection(this, socket, auth, idleTimeout, bufferSize, fh);
     }
 
     @Override
     public void close() throws IOException {
-        listeningThread.interrupt();
-        server.close();
+        for (ListeningThread listeningThread : listeningThreads)
+            listeningThread.interrupt();
+        listeningThreads.clear();
+
+        for (ServerSocket socket : servers)
+            socket.close();
+        servers.clear();
+
+        if (groupCommit != null) groupCommit.close();
+        if (usageTracker != null) usageTracker.unregister();
+        if (timingWheel != null) timingWheel.close();
+        timingWheel = null;
         server = null;
         isClosed = true;
         Log.i(TAG, "Server closed");
     }
 
+    /** Compute digests while receiving files, they are sent in the 226 reply and stored
+     * in the digest cache of the file handler
+     *
+     * @param algorithms The digests to compute, none to disable it */
+    public void setUploadDigests(DigestAlgorithm... algorithms) {
+        uploadDigests = algorithms.clone();
+    }
+
+    public DigestAlgorithm[] getUploadDigests() {
+        return uploadDigests;
+    }
+
+    /** Write new files to a hidden temporary file that atomically replaces the target
+     * when the transfer completes, so partially uploaded files are never visible */
+    public void setAtomicUploads(boolean atomicUploads) {
+        this.atomicUploads = atomicUploads;
+    }
+
+    public boolean isAtomicUploads() {
+        return atomicUploads;
+    }
+
+    public void setDurability(Durability durability) {
+        setDurability(durability, 10);
+    }
+
+    /** Set how received files are forced to disk before the transfer is confirmed
+     *
+     * @param durability The durability policy
+     * @param interval Time spent collecting a batch with {@link Durability#GROUP_COMMIT}, in milliseconds */
+    public void setDurability(Durability durability, long interval) {
+        if (groupCommit != null) {
+            groupCommit.close();
+            groupCommit = null;
+        }
+
+        if (durability == Durability.GROUP_COMMIT)
+            groupCommit = new GroupCommit(fh, interval);
+
+        this.durability = durability;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public GroupCommit getGroupCommit() {
+        return groupCommit;
+    }
+
+    /** Record every file transfer, completed or not
+     *
+     * @param log The audit log, null to disable it. It isn't closed with the server */
+    public void setTransferLog(TransferLog log) {
+        transferLog = log;
+    }
+
+    public TransferLog getTransferLog() {
+        return transferLog;
+    }
+
+    /** Count the transfers and listings to find the files, directories and clients driving the load.
+     * The tracker is registered with JMX as "ftpserver:type=UsageTracker,port=<port>"
+     *
+     * @param tracker The tracker, null to disable it */
+    public void setUsageTracker(UsageTracker tracker) {
+        if (usageTracker != null) usageTracker.unregister();
+
+        usageTracker = tracker;
+        if (tracker != null) tracker.register("ftpserver:type=UsageTracker,port=" + port);
+    }
+
+    public UsageTracker getUsageTracker() {
+        return usageTracker;
+    }
+
+    /** Set the limits of the recursive listings (LIST -R)
+     *
+     * @param maxDepth Maximum number of directory levels listed below the requested one, 0 disables recursion
+     * @param maxEntries Maximum number of entries sent in a listing */
+    public void setRecursiveListLimits(int maxDepth, int maxEntries) {
+        listMaxDepth = maxDepth;
+        listMaxEntries = maxEntries;
+    }
+
+    public int getListMaxDepth() {
+        return listMaxDepth;
+    }
+
+    public int getListMaxEntries() {
+        return listMaxEntries;
+    }
+
+    /** @param timeout Time allowed to login after connecting, in milliseconds */
+    public void setLoginTimeout(long timeout) {
+        loginTimeout = timeout;
+    }
+
+    public long getLoginTimeout() {
+        return loginTimeout;
+    }
+
+    /** @param timeout Time allowed without commands or transfers, in milliseconds.
+     *                 Only the sessions created afterwards use it */
+    public void setIdleTimeout(int timeout) {
+        idleTimeout = timeout;
+    }
+
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /** @param timeout Time allowed to open the data connection after PASV or a transfer command, in milliseconds */
+    public void setPassiveTimeout(long timeout) {
+        passiveTimeout = timeout;
+    }
+
+    public long getPassiveTimeout() {
+        return passiveTimeout;
+    }
+
+    /** @param timeout Time allowed without data moving on a data connection, in milliseconds */
+    public void setDataStallTimeout(long timeout) {
+        dataStallTimeout = timeout;
+    }
+
+    public long getDataStallTimeout() {
+        return dataStallTimeout;
+    }
+
+    /** @param interval Number of bytes between two restart markers sent in block mode, 0 for none */
+    public void setRestartMarkerInterval(long interval) {
+        restartMarkerInterval = interval;
+    }
+
+    public long getRestartMarkerInterval() {
+        return restartMarkerInterval;
+    }
+
+    /** Read the files sent by a thread of their own, ahead of the data connection, so
+     * a slow storage and a slow network work at the same time
+     *
+     * @param buffers Number of chunks read ahead, 0 to read the files as they are sent */
+    public void setReadAhead(int buffers) {
+        readAhead = buffers;
+    }
+
+    public int getReadAhead() {
+        return readAhead;
+    }
+
+    /** @param profile Socket options and chunk sizes used by the sessions created afterwards */
+    public void setSocketProfile(SocketProfile profile) {
+        socketProfile = profile;
+    }
+
+    public SocketProfile getSocketProfile() {
+        return socketProfile;
+    }
+
+    public TimingWheel getTimingWheel() {
+        return timingWheel;
+    }
+
+    /** Set the number of threads accepting connections, used when the server is created.
+     * Each one listens on its own socket when the system supports SO_REUSEPORT,
+     * otherwise they share the same socket */
+    public void setAcceptors(int acceptors) {
+        if (acceptors < 1) throw new IllegalArgumentException("Invalid number of acceptors");
+        this.acceptors = acceptors;
+    }
+
+    public int getAcceptors() {
+        return acceptors;
+    }
+
     public void setPort(int port) {
         this.port = port;
     }
@@ -114,11 +372,23 @@ public class FTPServer implements Closeable {
     }
 
     class ListeningThread extends Thread{
+
+        private final ServerSocket socket;
+
+        ListeningThread(ServerSocket socket) {
+            this.socket = socket;
+        }
+
         @Override
         public void run() {
-            while (server != null && !server.isClosed()) {
+            while (!socket.isClosed()) {
                 try {
-                    createControlConnection(server.accept());
+                    Socket client = socket.accept();
+
+                    AcceptEvent event = new AcceptEvent();
+                    event.begin();
+                    createControlConnection(client);
+                    event.finish(client.getInetAddress().getHostAddress(), client.getLocalPort());
                 } catch (IOException ignored) {}
             }
         }
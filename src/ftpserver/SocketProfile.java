@@ -0,0 +1,97 @@
+package ftpserver;
+
+/**
+ * Socket options and transfer chunk sizes applied to the connections of a server
+ *
+ * The buffer sizes are starting points, each connection grows them to cover its
+ * bandwidth-delay product once the round trip time and the throughput are known.
+ * A size of 0 leaves the buffer to the system, which tunes it automatically.
+ **/
+public class SocketProfile {
+
+    /** Disable Nagle's algorithm so the replies and the end of the transfers are not delayed */
+    private boolean tcpNoDelay = true;
+
+    /** SO_SNDBUF and SO_RCVBUF of the data connections, 0 for the system default */
+    private int sendBufferSize = 0;
+    private int receiveBufferSize = 0;
+
+    /** Largest socket buffer a connection can grow to */
+    private int maxBufferSize = 16 * 1024 * 1024;
+
+    /** Bounds of the chunks read and written during a transfer */
+    private int minChunkSize = 8 * 1024;
+    private int maxChunkSize = 1024 * 1024;
+
+    /** Speed assumed for the link before a transfer is measured, in bytes per second, 0 if unknown */
+    private long linkSpeed = 0;
+
+    /** @return A profile for long fat networks, such as 10 GbE links between data centers */
+    public static SocketProfile longFatNetwork() {
+        SocketProfile profile = new SocketProfile();
+        profile.setBufferSizes(4 * 1024 * 1024, 4 * 1024 * 1024);
+        profile.setMaxBufferSize(64 * 1024 * 1024);
+        profile.setChunkSizes(64 * 1024, 4 * 1024 * 1024);
+        profile.setLinkSpeed(10_000_000_000L / 8);
+        return profile;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /** @param sendBufferSize Initial SO_SNDBUF of the data connections, 0 for the system default
+     * @param receiveBufferSize Initial SO_RCVBUF of the data connections, 0 for the system default */
+    public void setBufferSizes(int sendBufferSize, int receiveBufferSize) {
+        if (sendBufferSize < 0 || receiveBufferSize < 0) throw new IllegalArgumentException("Invalid buffer size");
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /** @param maxBufferSize Largest socket buffer a connection can grow to, 0 to never grow them */
+    public void setMaxBufferSize(int maxBufferSize) {
+        if (maxBufferSize < 0) throw new IllegalArgumentException("Invalid buffer size");
+        this.maxBufferSize = maxBufferSize;
+    }
+
+    public int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    /** @param minChunkSize Smallest chunk read and written during a transfer
+     * @param maxChunkSize Largest chunk read and written during a transfer */
+    public void setChunkSizes(int minChunkSize, int maxChunkSize) {
+        if (minChunkSize <= 0 || maxChunkSize < minChunkSize) throw new IllegalArgumentException("Invalid chunk size");
+        this.minChunkSize = minChunkSize;
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    public int getMinChunkSize() {
+        return minChunkSize;
+    }
+
+    public int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    /** @param linkSpeed Speed assumed for the link before a transfer is measured, in bytes per second, 0 if unknown */
+    public void setLinkSpeed(long linkSpeed) {
+        this.linkSpeed = linkSpeed;
+    }
+
+    public long getLinkSpeed() {
+        return linkSpeed;
+    }
+}
@@ -0,0 +1,192 @@
+package ftpserver;
+
+import ftpserver.log.Log;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel running the timeouts of every session on one thread
+ *
+ * Each level has 64 slots, a slot of a level covers a whole turn of the level
+ * below it. Scheduling and cancelling a timeout is O(1), timeouts are moved to
+ * the lower level when its turn starts and run when their slot of the lowest
+ * level is reached. The tasks run on the wheel thread and must not block.
+ **/
+public class TimingWheel implements Closeable {
+
+    public static final String TAG = "TimingWheel";
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+
+    /** Duration of a tick in milliseconds */
+    private final long tick;
+    private final long startTime;
+
+    /** Sentinel of the list of timeouts of each slot */
+    private final Timeout[][] slots = new Timeout[LEVELS][SLOTS];
+
+    /** Last tick processed */
+    private long currentTick = 0;
+    private int size = 0;
+
+    private final TickThread thread;
+
+    /** @param tick Duration of a tick in milliseconds, the timeouts run up to a tick late */
+    public TimingWheel(long tick) {
+        this.tick = tick;
+        startTime = System.currentTimeMillis();
+
+        for (Timeout[] level : slots) {
+            for (int i = 0; i < SLOTS; i++) {
+                level[i] = new Timeout(null, 0);
+                level[i].prev = level[i].next = level[i];
+            }
+        }
+
+        thread = new TickThread();
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Run a task after a delay
+     *
+     * @param delay The delay in milliseconds
+     * @param task The task, run on the wheel thread
+     * @return The timeout, used to cancel it */
+    public synchronized Timeout schedule(long delay, Runnable task) {
+        long expires = (System.currentTimeMillis() + Math.max(delay, 0) - startTime + tick - 1) / tick;
+
+        Timeout timeout = new Timeout(task, Math.max(expires, currentTick + 1));
+        add(timeout);
+        size++;
+        return timeout;
+    }
+
+    /** @return The number of timeouts scheduled */
+    public synchronized int size() {
+        return size;
+    }
+
+    private void add(Timeout timeout) {
+        long expires = timeout.expires;
+
+        // The lowest level whose current turn includes the expiration
+        int level = 0;
+        while (level < LEVELS - 1 && (expires >>> (SLOT_BITS * (level + 1))) != (currentTick >>> (SLOT_BITS * (level + 1))))
+            level++;
+
+        Timeout head = slots[level][(int) (expires >>> (SLOT_BITS * level)) & (SLOTS - 1)];
+        timeout.prev = head.prev;
+        timeout.next = head;
+        head.prev.next = timeout;
+        head.prev = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        timeout.prev.next = timeout.next;
+        timeout.next.prev = timeout.prev;
+        timeout.prev = timeout.next = null;
+    }
+
+    /** Move to the next tick
+     *
+     * @param expired Where the timeouts that expired are added */
+    private void advance(List<Timeout> expired) {
+        currentTick++;
+
+        // Spread the slots whose turn starts over the lower levels, from the highest
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) continue;
+
+            Timeout head = slots[level][(int) (currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1)];
+            while (head.next != head) {
+                Timeout timeout = head.next;
+                unlink(timeout);
+                add(timeout);
+            }
+        }
+
+        Timeout head = slots[0][(int) currentTick & (SLOTS - 1)];
+        while (head.next != head) {
+            Timeout timeout = head.next;
+            unlink(timeout);
+
+            if (timeout.expires <= currentTick) {
+                expired.add(timeout);
+                size--;
+            } else {
+                // Beyond the highest level, placed a whole turn early
+                add(timeout);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        thread.interrupt();
+    }
+
+    public class Timeout {
+
+        private final Runnable task;
+        private final long expires;
+
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long expires) {
+            this.task = task;
+            this.expires = expires;
+        }
+
+        /** Prevent the task from running, nothing is done if it already ran */
+        public void cancel() {
+            synchronized (TimingWheel.this) {
+                if (prev == null) return;
+
+                unlink(this);
+                size--;
+            }
+        }
+    }
+
+    class TickThread extends Thread {
+
+        TickThread() {
+            super(TAG);
+        }
+
+        @Override
+        public void run() {
+            List<Timeout> expired = new ArrayList<>();
+
+            while (!isInterrupted()) {
+                long now = (System.currentTimeMillis() - startTime) / tick;
+
+                synchronized (TimingWheel.this) {
+                    while (currentTick < now)
+                        advance(expired);
+                }
+
+                for (Timeout timeout : expired) {
+                    try {
+                        timeout.task.run();
+                    } catch (Exception e) {
+                        Log.i(TAG, "Timeout failed: " + e);
+                    }
+                }
+                expired.clear();
+
+                try {
+                    Thread.sleep(Math.max(1, startTime + (now + 1) * tick - System.currentTimeMillis()));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
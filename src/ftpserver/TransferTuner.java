@@ -0,0 +1,198 @@
+package ftpserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Tune the data connections of a session from what was observed on the previous ones
+ *
+ * The round trip time is estimated when the data connections are opened and the
+ * throughput is measured during the transfers. The chunks read and written hold
+ * about a millisecond of data at the observed throughput, and the socket buffers
+ * grow to twice the bandwidth-delay product so long fat networks are not limited
+ * by the TCP window. As the throughput is itself limited by the buffers, they
+ * keep doubling over the transfers until the link is the limit.
+ **/
+public class TransferTuner {
+
+    public static final String TAG = "TransferTuner";
+
+    /** Time of transfer held by a chunk at the observed throughput, in nanoseconds */
+    private static final long CHUNK_TIME = 1_000_000;
+
+    /** How often the chunk size is revised during a transfer, in nanoseconds */
+    private static final long REVISE_INTERVAL = 100_000_000;
+
+    /** Transfers shorter than this measure the latency more than the throughput, in nanoseconds */
+    private static final long MIN_MEASURE_TIME = 50_000_000;
+
+    private final SocketProfile profile;
+
+    /** Smallest round trip time observed in nanoseconds, 0 if unknown */
+    private volatile long roundTripTime = 0;
+
+    /** Average throughput of the recent transfers in bytes per second, 0 if unknown */
+    private volatile long throughput = 0;
+
+    private volatile int chunkSize;
+
+    /** Socket buffers of the last data connection */
+    private volatile int sendBufferSize = 0;
+    private volatile int receiveBufferSize = 0;
+
+    /** @param profile The socket options of the server
+     * @param chunkSize Chunk size used before the throughput is known */
+    public TransferTuner(SocketProfile profile, int chunkSize) {
+        this.profile = profile;
+        this.chunkSize = clampChunk(chunkSize);
+    }
+
+    /** Record a round trip time measured on the connection to the client
+     *
+     * @param time The round trip time in nanoseconds */
+    public void onRoundTrip(long time) {
+        if (time > 0 && (roundTripTime == 0 || time < roundTripTime))
+            roundTripTime = time;
+    }
+
+    /** Apply the options to a passive socket before it is bound, the accepted sockets inherit its receive buffer */
+    public void configure(ServerSocket server) throws IOException {
+        int size = bufferSize(profile.getReceiveBufferSize());
+        if (size > server.getReceiveBufferSize()) server.setReceiveBufferSize(size);
+    }
+
+    /** Apply the options to a connected data socket */
+    public void configure(Socket socket) throws IOException {
+        socket.setTcpNoDelay(profile.isTcpNoDelay());
+
+        int size = bufferSize(profile.getSendBufferSize());
+        if (size > socket.getSendBufferSize()) socket.setSendBufferSize(size);
+
+        sendBufferSize = socket.getSendBufferSize();
+        receiveBufferSize = socket.getReceiveBufferSize();
+    }
+
+    /** Open an active data connection, its connection time is a round trip */
+    public Socket connect(String host, int port) throws IOException {
+        Socket socket = new Socket();
+
+        // The window scale is negotiated on connection, the receive buffer can't grow afterwards
+        int size = bufferSize(profile.getReceiveBufferSize());
+        if (size > socket.getReceiveBufferSize()) socket.setReceiveBufferSize(size);
+
+        long start = System.nanoTime();
+        socket.connect(new InetSocketAddress(host, port));
+        onRoundTrip(System.nanoTime() - start);
+
+        configure(socket);
+        return socket;
+    }
+
+    /** @param initial The size from the profile, 0 for the system default
+     * @return Twice the bandwidth-delay product when known, never less than initial */
+    private int bufferSize(int initial) {
+        long speed = Math.max(throughput, profile.getLinkSpeed());
+        long rtt = roundTripTime;
+
+        if (speed <= 0 || rtt <= 0 || profile.getMaxBufferSize() <= 0) return initial;
+
+        double bdp = (double) speed * rtt / 1e9;
+        return (int) Math.max(initial, Math.min(2 * bdp, profile.getMaxBufferSize()));
+    }
+
+    private int clampChunk(long size) {
+        return (int) Math.max(profile.getMinChunkSize(), Math.min(size, profile.getMaxChunkSize()));
+    }
+
+    /** @param rate A throughput in bytes per second
+     * @return The power of two holding about a millisecond of data at that throughput */
+    private int chunkFor(double rate) {
+        return clampChunk(Long.highestOneBit((long) (rate * CHUNK_TIME / 1e9)));
+    }
+
+    /** Start measuring a transfer */
+    public Meter start() {
+        return new Meter();
+    }
+
+    /** @return The smallest round trip time observed in nanoseconds, 0 if unknown */
+    public long getRoundTripTime() {
+        return roundTripTime;
+    }
+
+    /** @return The average throughput of the recent transfers in bytes per second, 0 if unknown */
+    public long getThroughput() {
+        return throughput;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    @Override
+    public String toString() {
+        long rtt = roundTripTime;
+        long throughput = this.throughput;
+
+        return "RTT: " + (rtt > 0 ? String.format("%.3f ms", rtt / 1e6) : "unknown") +
+                "; Throughput: " + (throughput > 0 ? String.format("%.1f MB/s", throughput / 1e6) : "unknown") +
+                "; Chunk: " + chunkSize / 1024 + " KB" +
+                "; SO_SNDBUF: " + (sendBufferSize > 0 ? sendBufferSize / 1024 + " KB" : "default") +
+                "; SO_RCVBUF: " + (receiveBufferSize > 0 ? receiveBufferSize / 1024 + " KB" : "default") + ";";
+    }
+
+    /**
+     * Measure the throughput of a transfer, used by the thread running it.
+     * The chunk size follows the throughput during the transfer.
+     **/
+    public class Meter {
+
+        private final long start = System.nanoTime();
+        private long revised = start;
+        private long bytes = 0;
+        private int chunk = chunkSize;
+
+        public int getChunkSize() {
+            return chunk;
+        }
+
+        /** @param length The number of bytes transferred
+         * @return Whether the chunk size changed */
+        public boolean add(int length) {
+            bytes += length;
+
+            long now = System.nanoTime();
+            if (now - revised < REVISE_INTERVAL) return false;
+            revised = now;
+
+            int size = chunkFor(bytes * 1e9 / (now - start));
+            if (size == chunk) return false;
+
+            chunk = size;
+            return true;
+        }
+
+        /** Record the throughput of the transfer for the next ones */
+        public void finish() {
+            long time = System.nanoTime() - start;
+            if (time < MIN_MEASURE_TIME) return;
+
+            long rate = (long) (bytes * 1e9 / time);
+            long previous = throughput;
+            long average = previous > 0 ? (previous * 3 + rate) / 4 : rate;
+
+            throughput = average;
+            chunkSize = chunkFor(average);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package ftpserver.access;
+
+import ftpserver.ControlConnection;
+import ftpserver.log.Log;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Authenticate the users of a file, where each line is
+ * "username:pbkdf2-sha256:iterations:salt:hash" with the salt and the hash in base64.
+ * Empty lines and lines starting with '#' are ignored.
+ *
+ * The file is reloaded when it changes, the logins keep using the previous users
+ * until the new ones are read. Hashes are verified on a bounded pool, and the
+ * successful logins are remembered for a short time so reconnecting clients
+ * don't pay for the hash again.
+ **/
+public class FileAuthenticator implements Authenticator, Closeable {
+
+    public static final String TAG = "FileAuthenticator";
+
+    public static final String ALGORITHM = "pbkdf2-sha256";
+    public static final int DEFAULT_ITERATIONS = 100000;
+
+    private static final int SALT_SIZE = 16;
+    private static final int HASH_SIZE = 32;
+
+    private final File file;
+
+    /** Users read from the file, replaced as a whole on reload */
+    private volatile Map<String, Credential> users = Collections.emptyMap();
+
+    /** Verified for the unknown users, so they take as long to reject as a wrong password */
+    private volatile Credential dummy = Credential.random(DEFAULT_ITERATIONS);
+    private volatile long lastModified;
+
+    /** Verify the hashes, a login storm can't use more threads than this */
+    private final ThreadPoolExecutor pool;
+
+    /** Recent successful logins by username */
+    private final Map<String, CachedLogin> cache = new ConcurrentHashMap<>();
+    private volatile long cacheTtl = 5 * 60 * 1000;
+
+    /** Secret of this process used to remember passwords without storing them */
+    private final byte[] pepper = new byte[32];
+
+    private final ReloadThread reloadThread;
+
+    /** @param file The file of the users, checked for changes every 5 seconds */
+    public FileAuthenticator(File file) throws IOException {
+        this(file, Runtime.getRuntime().availableProcessors(), 1024, 5000);
+    }
+
+    /** @param file The file of the users
+     * @param threads Maximum number of hashes verified at the same time
+     * @param queueSize Maximum number of logins waiting to be verified, the others fail
+     * @param reloadInterval How often the file is checked for changes in milliseconds, 0 to never check */
+    public FileAuthenticator(File file, int threads, int queueSize, long reloadInterval) throws IOException {
+        this.file = file;
+
+        new SecureRandom().nextBytes(pepper);
+
+        pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        reload();
+
+        if (reloadInterval > 0) {
+            reloadThread = new ReloadThread(reloadInterval);
+            reloadThread.setDaemon(true);
+            reloadThread.start();
+        } else {
+            reloadThread = null;
+        }
+    }
+
+    /** Read the file again, the logins are never blocked while it is read */
+    public synchronized void reload() throws IOException {
+        long modified = file.lastModified();
+        Map<String, Credential> users = new HashMap<>();
+        Map<Integer, Integer> iterations = new HashMap<>();
+
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+
+            String[] parts = line.split(":");
+            if (parts.length != 5 || !parts[1].equals(ALGORITHM))
+                throw new IOException("Invalid user at line " + lineNumber + " of " + file);
+
+            try {
+                Credential credential = new Credential(Integer.parseInt(parts[2]),
+                        Base64.getDecoder().decode(parts[3]), Base64.getDecoder().decode(parts[4]));
+                users.put(parts[0], credential);
+                iterations.merge(credential.iterations, 1, Integer::sum);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid user at line " + lineNumber + " of " + file);
+            }
+        }
+
+        // The dummy costs as much as the hashes of most users
+        int dummyIterations = iterations.entrySet().stream().max(Map.Entry.comparingByValue())
+                .map(Map.Entry::getKey).orElse(DEFAULT_ITERATIONS);
+        if (dummyIterations != dummy.iterations) dummy = Credential.random(dummyIterations);
+
+        this.users = Collections.unmodifiableMap(users);
+        this.lastModified = modified;
+
+        Log.i(TAG, users.size() + " users loaded");
+    }
+
+    /** @param ttl How long a successful login is remembered in milliseconds, 0 to always verify the hash */
+    public void setCacheTtl(long ttl) {
+        cacheTtl = ttl;
+        cache.clear();
+    }
+
+    public long getCacheTtl() {
+        return cacheTtl;
+    }
+
+    /** Create the line of the file for a user
+     *
+     * @param username The username, it can't contain ':'
+     * @param password The password
+     * @param iterations The number of iterations of PBKDF2 */
+    public static String createUser(String username, String password, int iterations) {
+        if (username.indexOf(':') >= 0) throw new IllegalArgumentException("Invalid username");
+
+        byte[] salt = new byte[SALT_SIZE];
+        new SecureRandom().nextBytes(salt);
+
+        return username + ":" + ALGORITHM + ":" + iterations + ":" + Base64.getEncoder().encodeToString(salt)
+                + ":" + Base64.getEncoder().encodeToString(hash(password, salt, iterations));
+    }
+
+    @Override
+    public boolean needUsername(ControlConnection conn) {
+        return true;
+    }
+
+    @Override
+    public boolean needPassword(ControlConnection conn, String username) {
+        return true;
+    }
+
+    @Override
+    public boolean authenticate(ControlConnection conn, String username, String password) {
+        Credential credential = users.get(username);
+
+        // Only a missing password asks whether the user exists, an empty one is checked like any other
+        if (password == null)
+            return credential != null;
+
+        byte[] key = cacheKey(password);
+
+        // The cached login is valid only for the credential it was verified against
+        CachedLogin cached = cache.get(username);
+        if (credential != null && cached != null && cached.credential == credential
+                && cached.expires > System.currentTimeMillis() && MessageDigest.isEqual(cached.key, key))
+            return true;
+
+        // An unknown user is verified too, the time of the reply doesn't tell whether the user exists
+        Credential verified = credential != null ? credential : dummy;
+
+        boolean valid;
+        try {
+            valid = pool.submit(() -> verified.verify(password)).get() && credential != null;
+        } catch (RejectedExecutionException e) {
+            Log.i(TAG, "Too many logins, " + username + " rejected");
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+
+        if (valid && cacheTtl > 0)
+            cache.put(username, new CachedLogin(credential, key, System.currentTimeMillis() + cacheTtl));
+
+        return valid;
+    }
+
+    private byte[] cacheKey(String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(pepper);
+            return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] hash(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_SIZE * 8);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (reloadThread != null) reloadThread.interrupt();
+        pool.shutdownNow();
+    }
+
+    private static class Credential {
+
+        final int iterations;
+        final byte[] salt;
+        final byte[] hash;
+
+        Credential(int iterations, byte[] salt, byte[] hash) {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+
+        /** @return A credential no password matches */
+        static Credential random(int iterations) {
+            byte[] salt = new byte[SALT_SIZE];
+            byte[] hash = new byte[HASH_SIZE];
+            SecureRandom random = new SecureRandom();
+            random.nextBytes(salt);
+            random.nextBytes(hash);
+            return new Credential(iterations, salt, hash);
+        }
+
+        boolean verify(String password) {
+            return MessageDigest.isEqual(hash, FileAuthenticator.hash(password, salt, iterations));
+        }
+    }
+
+    private static class CachedLogin {
+
+        final Credential credential;
+        final byte[] key;
+        final long expires;
+
+        CachedLogin(Credential credential, byte[] key, long expires) {
+            this.credential = credential;
+            this.key = key;
+            this.expires = expires;
+        }
+    }
+
+    class ReloadThread extends Thread {
+
+        private final long interval;
+
+        ReloadThread(long interval) {
+            super(TAG + "-reload");
+            this.interval = interval;
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                long modified = file.lastModified();
+                if (modified == lastModified) continue;
+
+                try {
+                    reload();
+                } catch (IOException e) {
+                    // Keep the previous users until the file is fixed
+                    Log.i(TAG, "Couldn't reload the users: " + e.getMessage());
+                    lastModified = modified;
+                }
+            }
+        }
+    }
+}
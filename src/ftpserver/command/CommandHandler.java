@@ -2,12 +2,28 @@ package ftpserver.command;
 
 import ftpserver.ControlConnection;
 import ftpserver.access.Authenticator;
+import ftpserver.file.DigestAlgorithm;
 import ftpserver.file.FileHandler;
+import ftpserver.file.FileIndex;
+import ftpserver.file.FileStat;
+import ftpserver.file.QuotaExceededException;
+import ftpserver.file.TreeLister;
+import ftpserver.log.HeavyHitters;
+import ftpserver.log.ListingEvent;
+import ftpserver.log.LoginEvent;
+import ftpserver.log.UsageTracker;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class CommandHandler {
 
@@ -16,7 +32,7 @@ public class CommandHandler {
     private final ControlConnection conn;
     private final FileHandler fh;
 
-    private boolean authenticated = false;
+    private volatile boolean authenticated = false;
 
     private File cwd;
 
@@ -24,6 +40,16 @@ public class CommandHandler {
 
     private File rnFile;
 
+    /** Source of the next SITE CPTO */
+    private File cpFile;
+
+    /** Range used by the next HASH command, a negative end means the end of the file */
+    private long hashStart = 0;
+    private long hashEnd = -1;
+
+    /** Path followed by an optional range, used by the X* checksum commands */
+    private static final Pattern CHECKSUM_ARGS = Pattern.compile("^(.*?)\\s+(\\d+)(?:\\s+(\\d+))?$");
+
     public CommandHandler(ControlConnection ctrlConn) {
         conn = ctrlConn;
         fh = conn.getFileHandler();
@@ -53,8 +79,37 @@ public class CommandHandler {
         conn.registerCommand("RNFR", this::rnfr, "RNFR <pathname>");
         conn.registerCommand("RNTO", this::rnto, "RNTO <pathname>");
         conn.registerCommand("REIN", this::rein, "REIN");
-        conn.registerCommand("STAT", this::stat, "STAT");
+        conn.registerCommand("STAT", this::stat, "STAT [<pathname>]");
         conn.registerCommand("MLSD", this::mlsd, "MLSD");
+        conn.registerCommand("MLST", this::mlst, "MLST [<pathname>]");
+        conn.registerCommand("SIZE", this::size, "SIZE <pathname>");
+        conn.registerCommand("MDTM", this::mdtm, "MDTM <pathname>");
+        conn.registerCommand("HASH", this::hash, "HASH <pathname>");
+        conn.registerCommand("RANG", this::rang, "RANG <start-point> <end-point>");
+        conn.registerCommand("XCRC", (String args) -> checksum(args, DigestAlgorithm.CRC32), "XCRC <pathname> [<start> [<end>]]");
+        conn.registerCommand("XMD5", (String args) -> checksum(args, DigestAlgorithm.MD5), "XMD5 <pathname> [<start> [<end>]]");
+        conn.registerCommand("XSHA1", (String args) -> checksum(args, DigestAlgorithm.SHA_1), "XSHA1 <pathname> [<start> [<end>]]");
+        conn.registerCommand("XSHA256", (String args) -> checksum(args, DigestAlgorithm.SHA_256), "XSHA256 <pathname> [<start> [<end>]]");
+        conn.registerCommand("XSHA512", (String args) -> checksum(args, DigestAlgorithm.SHA_512), "XSHA512 <pathname> [<start> [<end>]]");
+
+        StringBuilder hashFeature = new StringBuilder("HASH ");
+        for (DigestAlgorithm algorithm : DigestAlgorithm.values()) {
+            hashFeature.append(algorithm.getName());
+            if (algorithm == DigestAlgorithm.SHA_256) hashFeature.append('*');
+            hashFeature.append(';');
+        }
+
+        // RANG only applies to HASH, RETR and STOR ignore it so RANG STREAM isn't advertised
+        conn.registerFeature(hashFeature.substring(0, hashFeature.length() - 1)); // Hash (draft-bryan-ftpext-hash)
+
+        conn.registerSiteCommand("FIND", this::find, "SITE FIND <glob|substring>");
+        conn.registerSiteCommand("CPFR", this::cpfr, "SITE CPFR <pathname>");
+        conn.registerSiteCommand("CPTO", this::cpto, "SITE CPTO <pathname>");
+        conn.registerSiteCommand("TOP", this::top, "SITE TOP [FILES|DIRS|CLIENTS] [<count>]");
+
+        conn.registerFeature("SIZE"); // File size (RFC 3659)
+        conn.registerFeature("MDTM"); // File modification time (RFC 3659)
+        conn.registerOption("HASH", DigestAlgorithm.SHA_256.getName());
     }
 
     public File getFile(String path) throws IOException {
@@ -68,6 +123,11 @@ public class CommandHandler {
         return fh.findFile(cwd, path);
     }
 
+    /** @return The user logging in or logged in, null if no password was needed */
+    public String getUsername() {
+        return username;
+    }
+
     public boolean getAuthenticated() {
         return authenticated;
     }
@@ -94,6 +154,12 @@ public class CommandHandler {
         Authenticator auth = conn.getAuthenticator();
 
         if (!auth.needPassword(conn, username) || authenticated) {
+            if (!authenticated) {
+                LoginEvent event = new LoginEvent();
+                event.begin();
+                event.finish(username, true);
+            }
+
             conn.sendResponse(230, "Logged in");
             authenticated = true;
             return;
@@ -117,7 +183,10 @@ public class CommandHandler {
             return;
         }
 
+        LoginEvent event = new LoginEvent();
+        event.begin();
         boolean success = auth.authenticate(conn, username, password);
+        event.finish(username, success);
 
         if (success || !auth.needPassword(conn, username) || authenticated) {
             conn.sendResponse(230, "Logged in");
@@ -147,7 +216,7 @@ public class CommandHandler {
     private void cwd(String path) throws IOException {
         File dir = getFile(path);
 
-        if (dir.isDirectory()) {
+        if (fh.isDirectory(dir)) {
             cwd = dir;
             conn.sendResponse(250, "Directory changed successfully");
         } else
@@ -160,19 +229,46 @@ public class CommandHandler {
     }
 
     private void type(String type) {
-        if (type.toUpperCase().equals("I") || type.toUpperCase().equals("L")) {
-            conn.sendResponse(200, "Type changed successfully to: " + type.toUpperCase());
-            return;
+        String[] args = type.toUpperCase().trim().split("\\s+");
+
+        switch (args[0]) {
+            case "A":
+                // The format controls (N, T, C) don't change how the data is sent
+                if (args.length > 1 && !args[1].matches("[NTC]")) {
+                    conn.sendResponse(504, "Format not supported");
+                    return;
+                }
+                conn.getDataConnHandler().setAscii(true);
+                break;
+            case "L":
+                // L 8 is the same as I
+                if (args.length > 1 && !args[1].equals("8")) {
+                    conn.sendResponse(504, "Byte size not supported");
+                    return;
+                }
+                conn.getDataConnHandler().setAscii(false);
+                break;
+            case "I":
+                conn.getDataConnHandler().setAscii(false);
+                break;
+            default:
+                conn.sendResponse(504, "Unknown type");
+                return;
         }
-        //TODO implements other type
-        conn.sendResponse(500, "Unknown type");
+
+        conn.sendResponse(200, "Type changed successfully to: " + type.toUpperCase());
     }
 
     private void mode(String mode) {
-        if (mode.equalsIgnoreCase("S"))
+        if (mode.equalsIgnoreCase("S")) {
+            conn.getDataConnHandler().setBlockMode(false);
             conn.sendResponse(200, "Mode set to stream");
-        else
+        } else if (mode.equalsIgnoreCase("B")) {
+            conn.getDataConnHandler().setBlockMode(true);
+            conn.sendResponse(200, "Mode set to block");
+        } else {
             conn.sendResponse(504, "Mode not supported");
+        }
     }
 
     private void stru(String type) {
@@ -182,22 +278,59 @@ public class CommandHandler {
             conn.sendResponse(504, "Structure type not supported");
     }
 
-    private void list(String[] args) throws IOException {
+    private void list(String args) throws IOException {
         conn.sendResponse(150, "About to send data");
 
-        File dir = args.length > 0 ? getFile(args[0]) : cwd;
+        // ls style options, like -la or -R, come before the path
+        String path = args.trim();
+        boolean recursive = false;
+
+        while (path.startsWith("-")) {
+            int end = path.indexOf(' ');
+            if (end < 0) end = path.length();
+
+            recursive |= path.substring(0, end).contains("R");
+            path = path.substring(end).trim();
+        }
+
+        File dir = !path.isEmpty() ? getFile(path) : cwd;
 
         if (!fh.isDirectory(dir)) {
             conn.sendResponse(550, "Not a directory");
             return;
         }
 
+        if (recursive) {
+            TreeLister lister = new TreeLister(fh, conn.getServer().getListMaxDepth(),
+                    conn.getServer().getListMaxEntries());
+
+            // The listing is sent while it is built
+            ListingEvent event = new ListingEvent();
+            event.begin();
+            conn.getDataConnHandler().sendData(out -> lister.list(dir, out));
+            event.finish("LIST", fh.getPath(dir), lister.getEntries(), true);
+            trackListing(dir);
+
+            if (lister.isTruncated())
+                conn.sendResponse(226, "Listing truncated to " + lister.getMaxEntries() + " entries");
+            else
+                conn.sendResponse(226, "File send successfully");
+            return;
+        }
+
+        ListingEvent event = new ListingEvent();
+        event.begin();
+
         StringBuilder builder = new StringBuilder();
+        File[] files = fh.getListFiles(dir);
 
-        for (File file : fh.getListFiles(dir)) {
+        for (File file : files) {
             builder.append(fh.getFormat(file));
         }
 
+        event.finish("LIST", fh.getPath(dir), files.length, false);
+        trackListing(dir);
+
         conn.getDataConnHandler().sendData(builder.toString().getBytes(StandardCharsets.UTF_8));
         conn.sendResponse(226, "File send successfully");
     }
@@ -212,12 +345,19 @@ public class CommandHandler {
             return;
         }
 
+        ListingEvent event = new ListingEvent();
+        event.begin();
+
         StringBuilder builder = new StringBuilder();
+        File[] files = fh.getListFiles(dir);
 
-        for (File file : fh.getListFiles(dir)) {
-            builder.append(file.getName()).append("\r\n");
+        for (File file : files) {
+            builder.append(fh.getName(file)).append("\r\n");
         }
 
+        event.finish("NLST", fh.getPath(dir), files.length, false);
+        trackListing(dir);
+
         conn.getDataConnHandler().sendData(builder.toString().getBytes(StandardCharsets.UTF_8));
         conn.sendResponse(226, "File send successfully");
     }
@@ -243,7 +383,7 @@ public class CommandHandler {
             return;
         }
 
-        if (file.delete()) {
+        if (fh.delete(file)) {
             conn.sendResponse(250, '"' + path + '"' + " File deleted");
             return;
         }
@@ -258,7 +398,7 @@ public class CommandHandler {
             return;
         }
 
-        if (file.delete()) {
+        if (fh.delete(file)) {
             conn.sendResponse(250, '"' + path + '"' + " Directory deleted");
             return;
         }
@@ -305,14 +445,75 @@ public class CommandHandler {
         conn.sendResponse(250, "File renamed");
     }
 
+    private void cpfr(String path) throws IOException {
+        File file = getFile(path);
+
+        if (!fh.exists(file)) {
+            conn.sendResponse(550, "File not found");
+            return;
+        }
+
+        cpFile = file;
+        conn.sendResponse(350, "File or directory exists, ready for destination name");
+    }
+
+    private void cpto(String path) throws IOException {
+        if (cpFile == null) {
+            conn.sendResponse(503, "No copy request received");
+            return;
+        }
+
+        File from = cpFile;
+        cpFile = null;
+
+        try {
+            fh.copy(from, getFile(path));
+        } catch (QuotaExceededException e) {
+            conn.sendResponse(552, e.getMessage());
+            return;
+        }
+
+        conn.sendResponse(250, "Copy successful");
+    }
+
     private void rein() {
         conn.resetConnection();
         conn.sendResponse(220, "Ready for a new user");
     }
 
-    private void stat() {
-        conn.sendResponse(211, "-FTP server status:\r\n" + conn.getStatus(username));
-        conn.sendResponse(211, "End of status");
+    private void stat(String path) throws IOException {
+        if (path.isEmpty()) {
+            conn.sendResponse(211, "-FTP server status:\r\n" + conn.getStatus(username));
+            conn.sendResponse(211, "End of status");
+            return;
+        }
+
+        File file = getFile(path);
+
+        if (!fh.exists(file)) {
+            conn.sendResponse(550, "File not found");
+            return;
+        }
+
+        ListingEvent event = new ListingEvent();
+        event.begin();
+
+        // The listing is sent on the control connection, each line formatted as it is written
+        File[] files = fh.isDirectory(file) ? fh.getListFiles(file) : new File[]{file};
+        Iterator<String> lines = Arrays.stream(files).map(f -> {
+            String line = fh.getFormat(f);
+            return line.substring(0, line.length() - 2);
+        }).iterator();
+
+        conn.sendResponse(213, "Status of " + path + ":", lines, "End of status");
+        event.finish("STAT", fh.getPath(file), files.length, false);
+        if (fh.isDirectory(file)) trackListing(file);
+    }
+
+    /** Count a listing in the usage tracker of the server, if any */
+    private void trackListing(File dir) {
+        UsageTracker tracker = conn.getServer().getUsageTracker();
+        if (tracker != null) tracker.listed("/" + fh.getPath(dir));
     }
 
     private void mlsd(String[] args) throws IOException {
@@ -325,14 +526,237 @@ public class CommandHandler {
 
         conn.sendResponse(150, "Sending file information list...");
 
+        ListingEvent event = new ListingEvent();
+        event.begin();
+
         String[] options = conn.getOption("MLST").split(";");
         StringBuilder data = new StringBuilder();
+        File[] files = fh.getListFiles(file);
 
-        for(File f : fh.getListFiles(file)) {
+        for(File f : files) {
             data.append(fh.getFacts(f, options));
         }
 
+        event.finish("MLSD", fh.getPath(file), files.length, false);
+        trackListing(file);
+
         conn.getDataConnHandler().sendData(data.toString().getBytes("UTF-8"));
         conn.sendResponse(226, "The file list was sent!");
     }
+
+    private void mlst(String path) throws IOException {
+        File file = path.isEmpty() ? cwd : getFile(path);
+
+        if (!fh.exists(file)) throw new FileNotFoundException("File not found");
+
+        String[] options = conn.getOption("MLST").split(";");
+        String name = path.isEmpty() ? "/" + fh.getPath(file) : path;
+        String facts = fh.getFacts(file, options, name);
+
+        // sendResponse adds the line terminator
+        conn.sendResponse(250, "-Listing " + name + "\r\n " + facts.substring(0, facts.length() - 2));
+        conn.sendResponse(250, "End");
+    }
+
+    private void size(String path) throws IOException {
+        FileStat stat = fh.stat(getFile(path));
+
+        if (!stat.exists()) throw new FileNotFoundException("File not found");
+
+        if (stat.isDirectory()) {
+            conn.sendResponse(550, "Not a file");
+            return;
+        }
+
+        // The size of the data sent, with the line endings translated in TYPE A
+        long size = conn.getDataConnHandler().isAscii() ? fh.getAsciiSize(getFile(path)) : stat.getSize();
+        conn.sendResponse(213, String.valueOf(size));
+    }
+
+    private void mdtm(String path) throws IOException {
+        FileStat stat = fh.stat(getFile(path));
+
+        if (!stat.exists()) throw new FileNotFoundException("File not found");
+
+        conn.sendResponse(213, fh.toMdtmTimestamp(stat.getLastModified()));
+    }
+
+    private void find(String pattern) throws IOException {
+        FileIndex index = fh.getIndex();
+
+        if (index == null) {
+            conn.sendResponse(502, "File index not enabled");
+            return;
+        }
+
+        if (pattern.isEmpty()) {
+            conn.sendResponse(501, "Missing pattern");
+            return;
+        }
+
+        int limit = conn.getServer().getListMaxEntries();
+        int[] found = new int[1];
+
+        conn.sendResponse(150, "Sending search results");
+
+        // Each result is sent as soon as it is found, they are never all in memory
+        conn.getDataConnHandler().sendData(out -> {
+            try {
+                found[0] = index.search(pattern, limit, result -> {
+                    try {
+                        out.write((result + "\r\n").getBytes(StandardCharsets.UTF_8));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        });
+
+        if (found[0] >= limit)
+            conn.sendResponse(226, "Search truncated to " + limit + " results");
+        else
+            conn.sendResponse(226, found[0] + " files found");
+    }
+
+    private void top(String[] args) {
+        UsageTracker tracker = conn.getServer().getUsageTracker();
+
+        if (tracker == null) {
+            conn.sendResponse(502, "Usage tracking not enabled");
+            return;
+        }
+
+        String kind = args.length > 0 && !args[0].isEmpty() ? args[0].toUpperCase() : "ALL";
+        int count = 10;
+        try {
+            if (args.length > 1) count = Integer.parseInt(args[1]);
+            if (count <= 0) throw new NumberFormatException();
+        } catch (NumberFormatException e) {
+            conn.sendResponse(501, "Invalid count");
+            return;
+        }
+
+        if (!Arrays.asList("ALL", "FILES", "DIRS", "CLIENTS").contains(kind)) {
+            conn.sendResponse(501, "Unknown top, use FILES, DIRS or CLIENTS");
+            return;
+        }
+
+        boolean all = kind.equals("ALL");
+        List<String> lines = new ArrayList<>();
+        if (all || kind.equals("FILES"))
+            addTop(lines, "Files by bytes sent", tracker.getFiles(), count);
+        if (all || kind.equals("DIRS"))
+            addTop(lines, "Directories by listings", tracker.getDirectories(), count);
+        if (all || kind.equals("CLIENTS"))
+            addTop(lines, "Clients by bytes transferred", tracker.getClients(), count);
+
+        conn.sendResponse(211, "Top since the start or the last reset:", lines.iterator(), "End of top");
+    }
+
+    private static void addTop(List<String> lines, String title, HeavyHitters hitters, int count) {
+        lines.add(title + " (total " + hitters.getTotal() + "):");
+        for (HeavyHitters.Entry entry : hitters.getTop(count))
+            lines.add(String.format("  %12d %s", entry.getCount(), entry.getKey()));
+    }
+
+    private void hash(String path) throws IOException {
+        long start = hashStart;
+        long end = hashEnd;
+        hashStart = 0;
+        hashEnd = -1;
+
+        DigestAlgorithm algorithm = DigestAlgorithm.forName(conn.getOption("HASH"));
+
+        if (algorithm == null) {
+            conn.sendResponse(504, "Unsupported hash algorithm");
+            return;
+        }
+
+        File file = getFile(path);
+
+        if (!fh.exists(file)) throw new FileNotFoundException("File not found");
+
+        if (fh.isDirectory(file)) {
+            conn.sendResponse(550, "Not a file");
+            return;
+        }
+
+        long size = fh.size(file);
+        end = end < 0 ? size : Math.min(end, size);
+
+        if (start > end) {
+            conn.sendResponse(556, "Invalid range");
+            return;
+        }
+
+        // The reply gives the last byte hashed, like RANG
+        String digest = fh.digest(file, algorithm, start, end);
+        conn.sendResponse(213, algorithm.getName() + " " + start + "-" + Math.max(end - 1, start) + " " + digest + " " + path);
+    }
+
+    private void rang(String[] args) {
+        long start;
+        long end;
+
+        try {
+            start = Long.parseLong(args[0]);
+            end = args.length > 1 ? Long.parseLong(args[1]) : -1;
+        } catch (NumberFormatException e) {
+            conn.sendResponse(501, "Invalid range");
+            return;
+        }
+
+        // RANG 1 0 resets the range
+        if (start == 1 && end == 0) {
+            hashStart = 0;
+            hashEnd = -1;
+            conn.sendResponse(350, "Restarting at 0. Ending at EOF.");
+            return;
+        }
+
+        if (start < 0 || (end >= 0 && end < start)) {
+            conn.sendResponse(501, "Invalid range");
+            return;
+        }
+
+        // The end point is the last byte of the range, it is kept as the end of the range
+        hashStart = start;
+        hashEnd = end < 0 ? -1 : end + 1;
+        conn.sendResponse(350, "Restarting at " + start + ". Ending at " + (end < 0 ? "EOF" : end) + ".");
+    }
+
+    private void checksum(String args, DigestAlgorithm algorithm) throws IOException {
+        String path = args;
+        long start = 0;
+        long end = Long.MAX_VALUE;
+
+        // The range is optional, so it is parsed only when the whole argument isn't a file
+        Matcher matcher = CHECKSUM_ARGS.matcher(args);
+        if (!fh.exists(getFile(path)) && matcher.matches()) {
+            path = matcher.group(1);
+            start = Long.parseLong(matcher.group(2));
+            if (matcher.group(3) != null) end = Long.parseLong(matcher.group(3));
+        }
+
+        if (path.length() > 1 && path.startsWith("\"") && path.endsWith("\""))
+            path = path.substring(1, path.length() - 1);
+
+        File file = getFile(path);
+
+        if (!fh.exists(file)) throw new FileNotFoundException("File not found");
+
+        if (fh.isDirectory(file)) {
+            conn.sendResponse(550, "Not a file");
+            return;
+        }
+
+        if (start > Math.min(end, fh.size(file))) {
+            conn.sendResponse(501, "Invalid range");
+            return;
+        }
+
+        conn.sendResponse(250, fh.digest(file, algorithm, start, end).toUpperCase());
+    }
 }
@@ -4,6 +4,8 @@ import java.io.IOException;
 
 public class TransferException extends IOException {
 
+    private static final long serialVersionUID = 1L;
+
     private int responseCode;
 
     public TransferException(int code, String message) {
@@ -0,0 +1,166 @@
+package ftpserver.file;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Translate the line endings of the data written, for TYPE A transfers
+ *
+ * To the network every LF not already preceded by CR becomes CRLF, from the
+ * network every CRLF becomes LF. The line endings are searched 8 bytes at a
+ * time and the data between them is copied in bulk.
+ **/
+public class AsciiOutputStream extends FilterOutputStream {
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    /** Whether the data is converted to CRLF, otherwise to LF */
+    private final boolean toNetwork;
+
+    /** Translated bytes still to be discarded */
+    private long skip;
+
+    /** Last byte written, to find the line endings split between two writes */
+    private byte last = 0;
+    private boolean pendingCr = false;
+    private boolean closed = false;
+
+    private byte[] buffer = new byte[0];
+
+    /** @param out The stream receiving the translated data
+     * @param toNetwork Whether LF is converted to CRLF, otherwise CRLF is converted to LF
+     * @param skip Number of translated bytes discarded before writing, used to restart a transfer */
+    public AsciiOutputStream(OutputStream out, boolean toNetwork, long skip) {
+        super(out);
+        this.toNetwork = toNetwork;
+        this.skip = skip;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len <= 0) return;
+
+        if (buffer.length < len * 2 + 1) buffer = new byte[len * 2 + 1];
+
+        int length = toNetwork ? toCrlf(b, off, len) : toLf(b, off, len);
+        last = b[off + len - 1];
+
+        if (skip >= length) {
+            skip -= length;
+        } else {
+            out.write(buffer, (int) skip, length - (int) skip);
+            skip = 0;
+        }
+    }
+
+    /** @return The number of bytes written to the buffer */
+    private int toCrlf(byte[] b, int off, int len) {
+        int end = off + len;
+        int segment = off;
+        int length = 0;
+
+        for (int lf = indexOf(b, off, end, LF); lf >= 0; lf = indexOf(b, lf + 1, end, LF)) {
+            byte previous = lf > off ? b[lf - 1] : last;
+            if (previous == CR) continue;
+
+            System.arraycopy(b, segment, buffer, length, lf - segment);
+            length += lf - segment;
+            buffer[length++] = CR;
+            segment = lf;
+        }
+
+        System.arraycopy(b, segment, buffer, length, end - segment);
+        return length + end - segment;
+    }
+
+    private int toLf(byte[] b, int off, int len) {
+        int end = off + len;
+        int segment = off;
+        int length = 0;
+
+        // CR at the end of the previous write
+        if (pendingCr) {
+            pendingCr = false;
+            if (b[off] != LF) buffer[length++] = CR;
+        }
+
+        for (int cr = indexOf(b, off, end, CR); cr >= 0; cr = indexOf(b, cr + 1, end, CR)) {
+            if (cr + 1 < end && b[cr + 1] != LF) continue;
+
+            System.arraycopy(b, segment, buffer, length, cr - segment);
+            length += cr - segment;
+            segment = cr + 1;
+
+            // Wait for the next byte to know if it is a line ending
+            if (cr + 1 == end) pendingCr = true;
+        }
+
+        System.arraycopy(b, segment, buffer, length, end - segment);
+        return length + end - segment;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        // The file is closed even if the last byte goes over a quota
+        try {
+            if (pendingCr) {
+                pendingCr = false;
+                if (skip > 0) skip--;
+                else out.write(CR);
+            }
+        } finally {
+            super.close();
+        }
+    }
+
+    /** Find a byte, 8 bytes are compared at a time
+     *
+     * @return The index of the first occurrence, -1 if not found */
+    public static int indexOf(byte[] b, int from, int to, byte value) {
+        long pattern = (value & 0xffL) * ONES;
+        int i = from;
+
+        for (; i + 8 <= to; i += 8) {
+            long word = (long) LONGS.get(b, i) ^ pattern;
+
+            // The lowest byte set is the first zero byte, the ones above it may be false positives
+            long found = (word - ONES) & ~word & HIGHS;
+            if (found != 0) return i + (Long.numberOfTrailingZeros(found) >>> 3);
+        }
+
+        for (; i < to; i++) {
+            if (b[i] == value) return i;
+        }
+        return -1;
+    }
+
+    /** Count the LF not preceded by CR, they take one more byte once translated to the network
+     *
+     * @param previous The byte before the range */
+    public static int countBareLf(byte[] b, int from, int to, byte previous) {
+        int count = 0;
+
+        for (int lf = indexOf(b, from, to, LF); lf >= 0; lf = indexOf(b, lf + 1, to, LF)) {
+            if ((lf > from ? b[lf - 1] : previous) != CR) count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,701 @@
+package ftpserver.file;
+
+import ftpserver.log.Log;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Store the files as lists of content-defined chunks, each chunk is stored once
+ *
+ * The data written is cut where a rolling hash of the last bytes matches a
+ * pattern, so identical content gives identical chunks wherever it is in the
+ * file. Chunks are named by their SHA-256 and kept in "chunks", the directory
+ * tree is kept in "files" where each file is a manifest listing its chunks.
+ * Chunks no longer referenced are only removed by {@link #collectGarbage()}.
+ **/
+public class ChunkStorage implements Storage {
+
+    public static final String TAG = "ChunkStorage";
+
+    private static final int MIN_CHUNK = 16 * 1024;
+    private static final int AVERAGE_CHUNK = 64 * 1024;
+    private static final int MAX_CHUNK = 256 * 1024;
+
+    /** Harder to match before the average size and easier after, so the sizes stay close to it */
+    private static final long MASK_SMALL = 0xffffc00000000000L;
+    private static final long MASK_LARGE = 0xfffc000000000000L;
+
+    /** Bytes that can still change the rolling hash before the minimum size is reached */
+    private static final int WINDOW = 64;
+
+    /** Random value of each byte for the rolling hash, the chunk boundaries depend on it so it must never change */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x9e3779b97f4a7c15L);
+        for (int i = 0; i < GEAR.length; i++)
+            GEAR[i] = random.nextLong();
+    }
+
+    private final File filesDir;
+    private final File chunksDir;
+    private final File tmpDir;
+
+    /** Chunks recently read, shared by every file */
+    private final ChunkCache cache;
+
+    /** Chunks referenced by the open channels, they are kept by the garbage collector */
+    private final Map<String, Integer> pending = new ConcurrentHashMap<>();
+
+    /** Chunks stored or reused while the garbage collector runs, null otherwise */
+    private volatile Set<String> touched;
+
+    /** Chunks are only deleted while no channel stores one */
+    private final ReadWriteLock gcLock = new ReentrantReadWriteLock();
+
+    /** Chunks written since they were last forced to disk */
+    private final Set<String> unsynced = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong deduplicatedBytes = new AtomicLong();
+
+    /** @param dir The directory where the chunks and the manifests are kept */
+    public ChunkStorage(File dir) {
+        this(dir, 64 * 1024 * 1024);
+    }
+
+    /** @param dir The directory where the chunks and the manifests are kept
+     * @param cacheSize Maximum number of bytes of chunks kept in memory for the reads */
+    public ChunkStorage(File dir, long cacheSize) {
+        filesDir = new File(dir, "files");
+        chunksDir = new File(dir, "chunks");
+        tmpDir = new File(dir, "tmp");
+        cache = new ChunkCache(cacheSize);
+
+        filesDir.mkdirs();
+        chunksDir.mkdirs();
+        tmpDir.mkdirs();
+
+        // Left by an interrupted write
+        File[] leftovers = tmpDir.listFiles();
+        if (leftovers != null) {
+            for (File file : leftovers) file.delete();
+        }
+    }
+
+    private File manifestFile(String path) {
+        return path.equals("/") ? filesDir : new File(filesDir, path.substring(1));
+    }
+
+    private File chunkFile(String id) {
+        return new File(new File(chunksDir, id.substring(0, 2)), id);
+    }
+
+    @Override
+    public FileStat stat(String path) {
+        File file = manifestFile(path);
+        FileStat stat = FileStat.of(file);
+
+        if (!stat.exists() || stat.isDirectory()) return stat;
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            return stat.withSize(Long.parseLong(reader.readLine()));
+        } catch (IOException | RuntimeException e) {
+            return FileStat.MISSING;
+        }
+    }
+
+    @Override
+    public String[] list(String path) {
+        return manifestFile(path).list();
+    }
+
+    @Override
+    public FileChannel openRead(String path) throws IOException {
+        File file = manifestFile(path);
+        if (file.isDirectory()) throw new FileNotFoundException("Not a file");
+
+        return new ChunkReadChannel(readManifest(file));
+    }
+
+    @Override
+    public FileChannel openWrite(String path, boolean truncate) throws IOException {
+        File file = manifestFile(path);
+        if (file.isDirectory()) throw new FileNotFoundException("Not a file");
+
+        if (!file.exists()) {
+            if (!file.getParentFile().isDirectory()) throw new FileNotFoundException("Directory not found");
+
+            // The file exists as soon as it is opened
+            writeManifest(file, Collections.emptyList());
+            truncate = false;
+        }
+
+        List<Chunk> chunks = truncate ? Collections.emptyList() : readManifest(file).chunks;
+        return new ChunkWriteChannel(file, chunks, truncate);
+    }
+
+    @Override
+    public void rename(String from, String to) throws IOException {
+        move(manifestFile(from).toPath(), manifestFile(to).toPath());
+    }
+
+    @Override
+    public boolean delete(String path) {
+        return !path.equals("/") && manifestFile(path).delete();
+    }
+
+    @Override
+    public boolean mkdirs(String path) {
+        return manifestFile(path).mkdirs();
+    }
+
+    @Override
+    public void syncDirectory(String path) {
+        syncDirectory(manifestFile(path));
+    }
+
+    /** @return The number of bytes written to the chunk store */
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    /** @return The number of bytes received that were already stored */
+    public long getDeduplicatedBytes() {
+        return deduplicatedBytes.get();
+    }
+
+    /** Delete the chunks that no file references anymore, the files can be used meanwhile
+     *
+     * @return The number of bytes freed */
+    public synchronized long collectGarbage() throws IOException {
+        long start = System.currentTimeMillis();
+        touched = ConcurrentHashMap.newKeySet();
+
+        try {
+            // Mark
+            Set<String> marked = new HashSet<>(pending.keySet());
+
+            Files.walkFileTree(filesDir.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+                    for (Chunk chunk : readManifest(path.toFile()).chunks)
+                        marked.add(chunk.id);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+
+            // Sweep
+            long freed = 0;
+            int count = 0;
+            File[] dirs = chunksDir.listFiles();
+            if (dirs == null) return 0;
+
+            for (File dir : dirs) {
+                File[] chunks = dir.listFiles();
+                if (chunks == null) continue;
+
+                for (File chunk : chunks) {
+                    String id = chunk.getName();
+                    if (marked.contains(id) || touched.contains(id)) continue;
+
+                    gcLock.writeLock().lock();
+                    try {
+                        if (pending.containsKey(id) || touched.contains(id)) continue;
+
+                        long length = chunk.length();
+                        if (chunk.delete()) {
+                            cache.remove(id);
+                            unsynced.remove(id);
+                            freed += length;
+                            count++;
+                        }
+                    } finally {
+                        gcLock.writeLock().unlock();
+                    }
+                }
+            }
+
+            Log.i(TAG, count + " chunks deleted, " + freed + " bytes freed in "
+                    + (System.currentTimeMillis() - start) + "ms");
+            return freed;
+        } finally {
+            touched = null;
+        }
+    }
+
+    /** Store a chunk unless it is already stored, it is kept until {@link #release(String)} is called
+     *
+     * @return Whether the chunk was written */
+    private boolean store(String id, byte[] data, int length) throws IOException {
+        gcLock.readLock().lock();
+        try {
+            retain(id);
+
+            File file = chunkFile(id);
+            if (file.exists()) {
+                deduplicatedBytes.addAndGet(length);
+                return false;
+            }
+
+            file.getParentFile().mkdirs();
+            File temp = File.createTempFile("chunk", ".tmp", tmpDir);
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                out.write(data, 0, length);
+            }
+
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                // Stored by another upload meanwhile
+                temp.delete();
+                deduplicatedBytes.addAndGet(length);
+                return false;
+            }
+
+            unsynced.add(id);
+            storedBytes.addAndGet(length);
+            return true;
+        } finally {
+            gcLock.readLock().unlock();
+        }
+    }
+
+    /** Prevent the garbage collector from deleting a chunk */
+    private void retain(String id) {
+        pending.merge(id, 1, Integer::sum);
+
+        Set<String> touched = this.touched;
+        if (touched != null) touched.add(id);
+    }
+
+    private void release(String id) {
+        pending.computeIfPresent(id, (key, count) -> count > 1 ? count - 1 : null);
+    }
+
+    private byte[] load(String id) throws IOException {
+        byte[] data = cache.get(id);
+        if (data != null) return data;
+
+        try {
+            data = Files.readAllBytes(chunkFile(id).toPath());
+        } catch (NoSuchFileException e) {
+            throw new IOException("Missing chunk " + id);
+        }
+
+        cache.put(id, data);
+        return data;
+    }
+
+    /** Force the chunks of a file and their directories to disk */
+    private void sync(List<Chunk> chunks) throws IOException {
+        Set<File> dirs = new HashSet<>();
+
+        for (Chunk chunk : chunks) {
+            if (!unsynced.contains(chunk.id)) continue;
+
+            File file = chunkFile(chunk.id);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                channel.force(true);
+            }
+            dirs.add(file.getParentFile());
+            unsynced.remove(chunk.id);
+        }
+
+        for (File dir : dirs)
+            syncDirectory(dir);
+    }
+
+    private static void syncDirectory(File dir) {
+        // Some systems can't open directories, in that case nothing is done
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {}
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** Read a manifest: the size of the file on the first line, then the id and the length of each chunk */
+    private static Manifest readManifest(File file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            if (line == null) throw new IOException("Invalid manifest " + file);
+
+            long size = Long.parseLong(line);
+            List<Chunk> chunks = new ArrayList<>();
+
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab < 0) throw new IOException("Invalid manifest " + file);
+                chunks.add(new Chunk(line.substring(0, tab), Integer.parseInt(line.substring(tab + 1))));
+            }
+
+            return new Manifest(size, chunks);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid manifest " + file);
+        }
+    }
+
+    /** Replace a manifest atomically */
+    private void writeManifest(File file, List<Chunk> chunks) throws IOException {
+        long size = 0;
+        for (Chunk chunk : chunks) size += chunk.length;
+
+        File temp = File.createTempFile("manifest", ".tmp", tmpDir);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            writer.write(size + "\n");
+            for (Chunk chunk : chunks)
+                writer.write(chunk.id + "\t" + chunk.length + "\n");
+        }
+
+        try {
+            move(temp.toPath(), file.toPath());
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+    }
+
+    private static class Chunk {
+
+        final String id;
+        final int length;
+
+        Chunk(String id, int length) {
+            this.id = id;
+            this.length = length;
+        }
+    }
+
+    private static class Manifest {
+
+        final long size;
+        final List<Chunk> chunks;
+
+        Manifest(long size, List<Chunk> chunks) {
+            this.size = size;
+            this.chunks = chunks;
+        }
+    }
+
+    /** Least recently used chunks, up to a number of bytes */
+    private static class ChunkCache {
+
+        private final long capacity;
+        private long size = 0;
+
+        private final LinkedHashMap<String, byte[]> chunks = new LinkedHashMap<>(16, 0.75f, true);
+
+        ChunkCache(long capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized byte[] get(String id) {
+            return chunks.get(id);
+        }
+
+        synchronized void put(String id, byte[] data) {
+            if (data.length > capacity) return;
+
+            byte[] old = chunks.put(id, data);
+            if (old != null) size -= old.length;
+            size += data.length;
+
+            Iterator<byte[]> it = chunks.values().iterator();
+            while (size > capacity && it.hasNext()) {
+                size -= it.next().length;
+                it.remove();
+            }
+        }
+
+        synchronized void remove(String id) {
+            byte[] old = chunks.remove(id);
+            if (old != null) size -= old.length;
+        }
+    }
+
+    /** Read a file from its chunks, they are kept until the channel is closed even if the file is replaced */
+    private class ChunkReadChannel extends StorageChannel {
+
+        private final long size;
+        private final String[] ids;
+
+        /** Offset of each chunk in the file */
+        private final long[] offsets;
+
+        ChunkReadChannel(Manifest manifest) {
+            size = manifest.size;
+            ids = new String[manifest.chunks.size()];
+            offsets = new long[ids.length];
+
+            long offset = 0;
+            for (int i = 0; i < ids.length; i++) {
+                Chunk chunk = manifest.chunks.get(i);
+                retain(chunk.id);
+                ids[i] = chunk.id;
+                offsets[i] = offset;
+                offset += chunk.length;
+            }
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            if (position >= size) return -1;
+
+            int index = Arrays.binarySearch(offsets, position);
+            if (index < 0) index = -index - 2;
+
+            int total = 0;
+            while (dst.hasRemaining() && index < ids.length) {
+                byte[] data = load(ids[index]);
+                int offset = (int) (position - offsets[index]);
+                int length = Math.min(data.length - offset, dst.remaining());
+
+                dst.put(data, offset, length);
+                position += length;
+                total += length;
+                index++;
+            }
+            return total;
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public FileChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        protected void implCloseChannel() {
+            for (String id : ids) release(id);
+        }
+    }
+
+    /**
+     * Cut the data written at the end of the file in chunks as it arrives.
+     * Data written anywhere else is gathered in a temporary file, which is
+     * cut in chunks when the channel is closed.
+     **/
+    private class ChunkWriteChannel extends StorageChannel {
+
+        private final File file;
+        private final MessageDigest sha;
+
+        /** Chunks of the file, followed by the bytes not cut yet */
+        private final List<Chunk> chunks = new ArrayList<>();
+        private long chunksSize = 0;
+
+        private final byte[] buffer = new byte[MAX_CHUNK];
+        private int length = 0;
+        private int scanned = 0;
+        private long hash = 0;
+
+        /** Whole content of the file once it is written out of order */
+        private FileChannel spool;
+        private File spoolFile;
+
+        private boolean modified;
+
+        ChunkWriteChannel(File file, List<Chunk> chunks, boolean modified) throws IOException {
+            this.file = file;
+            this.modified = modified;
+
+            try {
+                sha = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+
+            // The existing chunks are kept when data is appended
+            for (Chunk chunk : chunks) {
+                retain(chunk.id);
+                this.chunks.add(chunk);
+                chunksSize += chunk.length;
+            }
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) {
+            throw new NonReadableChannelException();
+        }
+
+        @Override
+        public synchronized int write(ByteBuffer src, long position) throws IOException {
+            modified = true;
+
+            if (spool == null && position != size()) startSpool();
+            if (spool != null) return spool.write(src, position);
+
+            int written = src.remaining();
+            append(src);
+            return written;
+        }
+
+        @Override
+        public synchronized long size() {
+            try {
+                return spool != null ? spool.size() : chunksSize + length;
+            } catch (IOException e) {
+                return chunksSize + length;
+            }
+        }
+
+        @Override
+        public synchronized FileChannel truncate(long size) throws IOException {
+            if (size >= size()) return this;
+
+            modified = true;
+            if (spool == null) startSpool();
+
+            spool.truncate(size);
+            truncated(size);
+            return this;
+        }
+
+        /** Cut the data in chunks and store the ones that aren't stored yet */
+        private void append(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                int count = Math.min(src.remaining(), MAX_CHUNK - length);
+                src.get(buffer, length, count);
+                length += count;
+
+                while (scanned < length) {
+                    // Bytes before the window can't change the hash at the minimum size
+                    if (scanned < MIN_CHUNK - WINDOW) {
+                        scanned = Math.min(length, MIN_CHUNK - WINDOW);
+                        continue;
+                    }
+
+                    hash = (hash << 1) + GEAR[buffer[scanned++] & 0xff];
+                    long mask = scanned < AVERAGE_CHUNK ? MASK_SMALL : MASK_LARGE;
+
+                    if ((scanned >= MIN_CHUNK && (hash & mask) == 0) || scanned == MAX_CHUNK)
+                        cut(scanned);
+                }
+            }
+        }
+
+        private void cut(int count) throws IOException {
+            sha.update(buffer, 0, count);
+            String id = DigestAlgorithm.toHex(sha.digest());
+
+            store(id, buffer, count);
+            chunks.add(new Chunk(id, count));
+            chunksSize += count;
+
+            System.arraycopy(buffer, count, buffer, 0, length - count);
+            length -= count;
+            scanned = 0;
+            hash = 0;
+        }
+
+        /** Gather the content in a temporary file so it can be written in any order */
+        private void startSpool() throws IOException {
+            spoolFile = File.createTempFile("spool", ".tmp", tmpDir);
+            spool = FileChannel.open(spoolFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            long position = 0;
+            for (Chunk chunk : chunks) {
+                ByteBuffer data = ByteBuffer.wrap(load(chunk.id));
+                while (data.hasRemaining()) position += spool.write(data, position);
+            }
+
+            ByteBuffer rest = ByteBuffer.wrap(buffer, 0, length);
+            while (rest.hasRemaining()) position += spool.write(rest, position);
+
+            clearChunks();
+            length = 0;
+            scanned = 0;
+            hash = 0;
+        }
+
+        /** Cut the content of the temporary file in chunks */
+        private void endSpool() throws IOException {
+            ByteBuffer data = ByteBuffer.allocate(MAX_CHUNK);
+            spool.position(0);
+
+            while (spool.read(data) >= 0) {
+                data.flip();
+                append(data);
+                data.clear();
+            }
+
+            closeSpool();
+        }
+
+        private void closeSpool() throws IOException {
+            spool.close();
+            spoolFile.delete();
+            spool = null;
+        }
+
+        private void clearChunks() {
+            for (Chunk chunk : chunks) release(chunk.id);
+            chunks.clear();
+            chunksSize = 0;
+        }
+
+        /** Store the remaining data and write the manifest */
+        private void flush() throws IOException {
+            if (spool != null) endSpool();
+            if (length > 0) cut(length);
+
+            if (modified) writeManifest(file, chunks);
+            modified = false;
+        }
+
+        /** Store the data written so far, data written out of order is only stored when the channel is closed */
+        @Override
+        public synchronized void force(boolean metaData) throws IOException {
+            if (spool != null) return;
+
+            flush();
+            sync(chunks);
+
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                channel.force(true);
+            }
+        }
+
+        @Override
+        protected synchronized void implCloseChannel() throws IOException {
+            try {
+                flush();
+            } finally {
+                if (spool != null) closeSpool();
+                clearChunks();
+            }
+        }
+    }
+}
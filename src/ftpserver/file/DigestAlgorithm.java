@@ -0,0 +1,203 @@
+package ftpserver.file;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * Checksum algorithms supported by the HASH and X* commands
+ **/
+public enum DigestAlgorithm {
+
+    CRC32("CRC32", 0xedb88320L),
+    CRC32C("CRC32C", 0x82f63b78L),
+    MD5("MD5", 0),
+    SHA_1("SHA-1", 0),
+    SHA_256("SHA-256", 0),
+    SHA_512("SHA-512", 0);
+
+    /** Name used by the HASH command (draft-bryan-ftpext-hash) */
+    private final String name;
+
+    /** Reversed CRC polynomial, 0 if partial digests can't be combined */
+    private final long polynomial;
+
+    DigestAlgorithm(String name, long polynomial) {
+        this.name = name;
+        this.polynomial = polynomial;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** Check whether a digest can be computed in parallel chunks and then combined */
+    public boolean isCombinable() {
+        return polynomial != 0;
+    }
+
+    /** Find an algorithm by its name
+     *
+     * @param name The name of the algorithm, case insensitive
+     * @return The algorithm or null if it isn't supported */
+    public static DigestAlgorithm forName(String name) {
+        for (DigestAlgorithm algorithm : values()) {
+            if (algorithm.name.equalsIgnoreCase(name))
+                return algorithm;
+        }
+        return null;
+    }
+
+    public Hasher newHasher() {
+        switch (this) {
+            case CRC32:
+                return new ChecksumHasher(new CRC32());
+            case CRC32C:
+                return new ChecksumHasher(new CRC32C());
+            default:
+                try {
+                    return new MessageDigestHasher(MessageDigest.getInstance(name));
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(name + " not available", e);
+                }
+        }
+    }
+
+    /** Combine two checksums computed over adjacent ranges
+     *
+     * @param crc1 The checksum of the first range
+     * @param crc2 The checksum of the second range
+     * @param length2 The length of the second range
+     * @return The checksum of both ranges */
+    public long combine(long crc1, long crc2, long length2) {
+        if (!isCombinable()) throw new UnsupportedOperationException(name + " can't be combined");
+        if (length2 <= 0) return crc1;
+
+        // Same approach as zlib's crc32_combine: apply length2 zero bytes to crc1
+        // by squaring the GF(2) matrix of the "one zero bit" operator
+        long[] even = new long[32];
+        long[] odd = new long[32];
+
+        odd[0] = polynomial;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        gf2MatrixSquare(even, odd); // 2 zero bits
+        gf2MatrixSquare(odd, even); // 4 zero bits
+
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((length2 & 1) != 0) crc1 = gf2MatrixTimes(even, crc1);
+            length2 >>= 1;
+
+            if (length2 == 0) break;
+
+            gf2MatrixSquare(odd, even);
+            if ((length2 & 1) != 0) crc1 = gf2MatrixTimes(odd, crc1);
+            length2 >>= 1;
+        } while (length2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0)
+                sum ^= matrix[i];
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++)
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+    }
+
+    public static String toHex(byte[] data) {
+        StringBuilder builder = new StringBuilder(data.length * 2);
+        for (byte b : data) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+            builder.append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    /** Incremental digest computation */
+    public interface Hasher {
+
+        void update(byte[] data, int offset, int length);
+
+        void update(ByteBuffer buffer);
+
+        /** Raw value of a checksum, used to combine partial results */
+        long getValue();
+
+        /** @return The digest as lowercase hex */
+        String digest();
+    }
+
+    private static class ChecksumHasher implements Hasher {
+
+        private final Checksum checksum;
+
+        ChecksumHasher(Checksum checksum) {
+            this.checksum = checksum;
+        }
+
+        @Override
+        public void update(byte[] data, int offset, int length) {
+            checksum.update(data, offset, length);
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            checksum.update(buffer);
+        }
+
+        @Override
+        public long getValue() {
+            return checksum.getValue();
+        }
+
+        @Override
+        public String digest() {
+            return String.format("%08x", checksum.getValue());
+        }
+    }
+
+    private static class MessageDigestHasher implements Hasher {
+
+        private final MessageDigest md;
+
+        MessageDigestHasher(MessageDigest md) {
+            this.md = md;
+        }
+
+        @Override
+        public void update(byte[] data, int offset, int length) {
+            md.update(data, offset, length);
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            md.update(buffer);
+        }
+
+        @Override
+        public long getValue() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String digest() {
+            return toHex(md.digest());
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package ftpserver.file;
+
+import ftpserver.log.Log;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Cache of the digests computed by the server
+ *
+ * Entries are keyed by path, algorithm and range, and are valid only while
+ * the size and the last modified time of the file don't change.
+ * The least recently used files are dropped above the maximum number of entries,
+ * and the entries of a file are dropped when the file handler reports a change.
+ * The size of the files in TYPE A, which also needs the whole file to be read, is kept the same way.
+ * When a journal file is given the cache survives restarts.
+ **/
+public class DigestCache implements Closeable {
+
+    public static final String TAG = "DigestCache";
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    /** Range of the TYPE A sizes, in place of an algorithm and a range */
+    private static final String ASCII_SIZE = "ascii 0--1";
+
+    /** Entries of each file by algorithm and range, the files in access order, guarded by this */
+    private final LinkedHashMap<String, Map<String, Entry>> files = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** The same paths sorted, to find the files of a directory */
+    private final TreeSet<String> paths = new TreeSet<>();
+
+    private final int maxEntries;
+    private int size = 0;
+
+    /** Append-only journal, null for a memory only cache */
+    private final File journal;
+    private Writer writer;
+
+    /** Lines in the journal, it is rewritten when most of them are stale */
+    private int journalLines;
+
+    /** Create a memory only cache */
+    public DigestCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /** Create a memory only cache
+     *
+     * @param maxEntries Number of digests kept */
+    public DigestCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        journal = null;
+    }
+
+    /** Create a persistent cache
+     *
+     * @param journal The file where the digests are stored */
+    public DigestCache(File journal) throws IOException {
+        this(journal, DEFAULT_MAX_ENTRIES);
+    }
+
+    /** Create a persistent cache
+     *
+     * @param journal The file where the digests are stored
+     * @param maxEntries Number of digests kept */
+    public DigestCache(File journal, int maxEntries) throws IOException {
+        this.journal = journal;
+        this.maxEntries = maxEntries;
+
+        journalLines = load();
+        if (isStale()) compact();
+
+        writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(journal, true), StandardCharsets.UTF_8));
+        Log.i(TAG, size + " digests loaded");
+    }
+
+    /** Get a cached digest
+     *
+     * @return The digest, or null if it isn't cached or the file changed */
+    public synchronized String get(String path, DigestAlgorithm algorithm, long start, long end, long size, long lastModified) {
+        return get(path, range(algorithm, start, end), size, lastModified);
+    }
+
+    public synchronized void put(String path, DigestAlgorithm algorithm, long start, long end,
+                                 long size, long lastModified, String digest) {
+        put(path, range(algorithm, start, end), size, lastModified, digest);
+    }
+
+    /** Get the cached size of a file once its line endings are translated to CRLF
+     *
+     * @return The size, -1 if it isn't cached or the file changed */
+    public synchronized long getAsciiSize(String path, long size, long lastModified) {
+        String asciiSize = get(path, ASCII_SIZE, size, lastModified);
+        return asciiSize != null ? Long.parseLong(asciiSize) : -1;
+    }
+
+    public synchronized void putAsciiSize(String path, long size, long lastModified, long asciiSize) {
+        put(path, ASCII_SIZE, size, lastModified, String.valueOf(asciiSize));
+    }
+
+    private String get(String path, String range, long size, long lastModified) {
+        Map<String, Entry> ranges = files.get(path);
+        Entry entry = ranges != null ? ranges.get(range) : null;
+
+        if (entry == null || entry.size != size || entry.lastModified != lastModified)
+            return null;
+
+        return entry.digest;
+    }
+
+    private void put(String path, String range, long size, long lastModified, String digest) {
+        Entry entry = new Entry(size, lastModified, digest);
+
+        if (!add(path, range, entry)) return;
+
+        append(path, range, entry);
+        evict();
+    }
+
+    /** @return Whether the entry is new or changed */
+    private boolean add(String path, String range, Entry entry) {
+        Map<String, Entry> ranges = files.get(path);
+        if (ranges == null) {
+            ranges = new HashMap<>();
+            files.put(path, ranges);
+            paths.add(path);
+        }
+
+        Entry old = ranges.put(range, entry);
+        if (old == null) size++;
+        return !entry.equals(old);
+    }
+
+    /** Drop the least recently used files until the entries fit */
+    private void evict() {
+        Iterator<Map.Entry<String, Map<String, Entry>>> it = files.entrySet().iterator();
+        while (size > maxEntries && it.hasNext()) {
+            Map.Entry<String, Map<String, Entry>> eldest = it.next();
+            size -= eldest.getValue().size();
+            paths.remove(eldest.getKey());
+            it.remove();
+        }
+    }
+
+    private void removePath(String path) {
+        Map<String, Entry> ranges = files.remove(path);
+        if (ranges == null) return;
+
+        size -= ranges.size();
+        paths.remove(path);
+    }
+
+    /** @return The cached paths inside a directory */
+    private List<String> pathsUnder(String dir) {
+        if (dir.isEmpty()) return new ArrayList<>(paths);
+
+        return new ArrayList<>(paths.subSet(dir + "/", dir + "0"));
+    }
+
+    /** Remove every digest of a file, or of the files in a directory
+     *
+     * @param path The path relative to the root */
+    public synchronized void remove(String path) {
+        removePath(path);
+        for (String child : pathsUnder(path))
+            removePath(child);
+    }
+
+    /** Remove the digests of the files directly inside a directory, the ones further down are kept
+     *
+     * @param dir The path of the directory relative to the root, empty for the root */
+    public synchronized void removeChildren(String dir) {
+        int start = dir.isEmpty() ? 0 : dir.length() + 1;
+
+        for (String child : pathsUnder(dir)) {
+            if (child.indexOf('/', start) < 0) removePath(child);
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private static String range(DigestAlgorithm algorithm, long start, long end) {
+        return algorithm.getName() + " " + start + "-" + end;
+    }
+
+    private void append(String path, String range, Entry entry) {
+        if (writer == null) return;
+
+        try {
+            writer.write(entry.size + "\t" + entry.lastModified + "\t" + entry.digest + "\t" + range + " " + path + "\n");
+            writer.flush();
+            journalLines++;
+
+            if (isStale()) {
+                writer.close();
+                try {
+                    compact();
+                } finally {
+                    writer = new BufferedWriter(new OutputStreamWriter(
+                            new FileOutputStream(journal, true), StandardCharsets.UTF_8));
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** @return Whether most of the journal contains stale entries */
+    private boolean isStale() {
+        return journalLines > 2 * size + 1024;
+    }
+
+    private int load() throws IOException {
+        if (!journal.exists()) return 0;
+
+        int lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(journal.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                String[] fields = line.split("\t", 4);
+                if (fields.length < 4) continue;
+
+                // The key is "<algorithm> <start>-<end> <path>"
+                String[] key = fields[3].split(" ", 3);
+                if (key.length < 3) continue;
+
+                try {
+                    add(key[2], key[0] + " " + key[1], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]));
+                } catch (NumberFormatException ignored) {}
+            }
+        }
+        evict();
+        return lines;
+    }
+
+    private void compact() throws IOException {
+        File tmp = new File(journal.getPath() + ".tmp");
+
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, Map<String, Entry>> file : files.entrySet()) {
+                for (Map.Entry<String, Entry> e : file.getValue().entrySet()) {
+                    Entry entry = e.getValue();
+                    out.write(entry.size + "\t" + entry.lastModified + "\t" + entry.digest + "\t"
+                            + e.getKey() + " " + file.getKey() + "\n");
+                }
+            }
+        }
+
+        Files.move(tmp.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        journalLines = size;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    private static class Entry {
+        final long size;
+        final long lastModified;
+        final String digest;
+
+        Entry(long size, long lastModified, String digest) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) return false;
+            Entry entry = (Entry) o;
+            return size == entry.size && lastModified == entry.lastModified && digest.equals(entry.digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return digest.hashCode();
+        }
+    }
+}
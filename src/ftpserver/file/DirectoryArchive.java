@@ -0,0 +1,413 @@
+package ftpserver.file;
+
+import ftpserver.log.Log;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Archive of a directory tree, written as it is produced without a temporary file
+ *
+ * The small files are read in parallel on the fork-join pool, ahead of the
+ * writer, and written in the order of the tree. The large ones are streamed
+ * by the writer when their turn comes. Zip entries of files already compressed
+ * are stored as they are.
+ **/
+public class DirectoryArchive {
+
+    public static final String TAG = "DirectoryArchive";
+
+    public enum Format {
+        ZIP(".zip"),
+        TAR(".tar");
+
+        private final String suffix;
+
+        Format(String suffix) {
+            this.suffix = suffix;
+        }
+
+        public String getSuffix() {
+            return suffix;
+        }
+
+        /** @return The format of an archive name, null if it isn't an archive */
+        public static Format of(String name) {
+            String lower = name.toLowerCase(Locale.ROOT);
+            for (Format format : values()) {
+                if (lower.endsWith(format.suffix) && lower.length() > format.suffix.length()) return format;
+            }
+            return null;
+        }
+    }
+
+    /** Files up to this size are read ahead of the writer */
+    private static final int MAX_PREFETCH_SIZE = 1024 * 1024;
+    /** Limits of the files read ahead */
+    private static final long PREFETCH_BYTES = 16 * 1024 * 1024;
+    private static final int PREFETCH_FILES = 256;
+
+    private static final int TAR_BLOCK = 512;
+
+    private static final Set<String> COMPRESSED = new HashSet<>(Arrays.asList(
+            "zip", "gz", "tgz", "bz2", "xz", "zst", "7z", "rar", "jar", "apk", "docx", "xlsx", "pptx",
+            "jpg", "jpeg", "png", "gif", "webp", "mp3", "mp4", "m4a", "mkv", "avi", "mov", "ogg", "flac", "webm"));
+
+    private final FileHandler fh;
+    private final File dir;
+    private final Format format;
+
+    /** @param fh The file handler reading the files
+     * @param dir The directory archived, its name is the top of the paths in the archive
+     * @param format The format of the archive */
+    public DirectoryArchive(FileHandler fh, File dir, Format format) {
+        this.fh = fh;
+        this.dir = dir;
+        this.format = format;
+    }
+
+    /** Write the archive, the stream isn't closed */
+    public void write(OutputStream out) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        collect(dir, fh.getName(dir), entries);
+
+        ArchiveWriter writer = format == Format.ZIP ? new ZipWriter(out) : new TarWriter(out);
+        ArrayDeque<Entry> window = new ArrayDeque<>();
+        long prefetched = 0;
+        int next = 0;
+
+        while (true) {
+            // Keep the readers ahead of the writer, within the limits
+            while (next < entries.size() && window.size() < PREFETCH_FILES) {
+                Entry entry = entries.get(next);
+
+                if (!entry.directory && entry.size <= MAX_PREFETCH_SIZE) {
+                    if (prefetched + entry.size > PREFETCH_BYTES && !window.isEmpty()) break;
+
+                    entry.content = CompletableFuture.supplyAsync(() -> read(entry), ForkJoinPool.commonPool());
+                    prefetched += entry.size;
+                }
+
+                window.add(entry);
+                next++;
+            }
+
+            Entry entry = window.poll();
+            if (entry == null) break;
+
+            if (entry.content != null) prefetched -= entry.size;
+            write(writer, entry);
+        }
+
+        writer.finish();
+    }
+
+    /** List the tree in the order of the archive, the directories before their content */
+    private void collect(File file, String name, List<Entry> entries) {
+        File[] files = fh.getListFiles(file);
+        entries.add(new Entry(file, name + "/", true, 0, fh.getLastModified(file)));
+        if (files == null) return;
+
+        Arrays.sort(files, Comparator.comparing(File::getName));
+
+        for (File child : files) {
+            // Links leading outside of the root aren't archived, links to directories aren't followed
+            if (!fh.isInside(fh.getRoot(), child)) continue;
+
+            FileStat stat = fh.stat(child);
+            String childName = name + "/" + child.getName();
+
+            if (stat.isDirectory()) {
+                if (!fh.isSymbolicLink(child)) collect(child, childName, entries);
+            } else if (stat.exists()) entries.add(new Entry(child, childName, false, stat.getSize(), stat.getLastModified()));
+        }
+    }
+
+    private byte[] read(Entry entry) {
+        try (InputStream in = fh.getFileInputStream(entry.file, 0)) {
+            byte[] data = new byte[(int) entry.size];
+
+            int length = 0, read;
+            while (length < data.length && (read = in.read(data, length, data.length - length)) != -1)
+                length += read;
+
+            return length == data.length ? data : Arrays.copyOf(data, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void write(ArchiveWriter writer, Entry entry) throws IOException {
+        if (entry.directory) {
+            writer.putDirectory(entry);
+            return;
+        }
+
+        if (entry.content != null) {
+            byte[] data;
+            try {
+                data = entry.content.join();
+            } catch (CompletionException e) {
+                Log.i(TAG, "Skipped " + entry.name + ": " + e.getCause().getMessage());
+                return;
+            }
+            entry.content = null;
+
+            writer.putFile(entry, data);
+            return;
+        }
+
+        InputStream in;
+        try {
+            in = fh.getFileInputStream(entry.file, 0);
+        } catch (IOException e) {
+            Log.i(TAG, "Skipped " + entry.name + ": " + e.getMessage());
+            return;
+        }
+
+        try {
+            writer.putFile(entry, in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean isCompressed(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && COMPRESSED.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private static class Entry {
+        final File file;
+        /** Path in the archive, ending with a slash for a directory */
+        final String name;
+        final boolean directory;
+        final long size;
+        final long lastModified;
+
+        /** Content read ahead, null if the file is streamed */
+        CompletableFuture<byte[]> content;
+
+        Entry(File file, String name, boolean directory, long size, long lastModified) {
+            this.file = file;
+            this.name = name;
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private interface ArchiveWriter {
+        void putDirectory(Entry entry) throws IOException;
+
+        void putFile(Entry entry, byte[] data) throws IOException;
+
+        void putFile(Entry entry, InputStream in) throws IOException;
+
+        void finish() throws IOException;
+    }
+
+    private static class ZipWriter implements ArchiveWriter {
+
+        private final ZipOutputStream zip;
+        private final byte[] buffer = new byte[64 * 1024];
+
+        ZipWriter(OutputStream out) {
+            // The data connection is closed by the transfer, not by the archive
+            zip = new ZipOutputStream(new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            }, StandardCharsets.UTF_8);
+        }
+
+        private ZipEntry newEntry(Entry entry) {
+            ZipEntry zipEntry = new ZipEntry(entry.name);
+            zipEntry.setTime(entry.lastModified);
+            return zipEntry;
+        }
+
+        @Override
+        public void putDirectory(Entry entry) throws IOException {
+            zip.putNextEntry(newEntry(entry));
+            zip.closeEntry();
+        }
+
+        @Override
+        public void putFile(Entry entry, byte[] data) throws IOException {
+            ZipEntry zipEntry = newEntry(entry);
+
+            // The size and the checksum of a stored entry come before its data
+            if (isCompressed(entry.name)) {
+                CRC32 crc = new CRC32();
+                crc.update(data, 0, data.length);
+
+                zipEntry.setMethod(ZipEntry.STORED);
+                zipEntry.setSize(data.length);
+                zipEntry.setCompressedSize(data.length);
+                zipEntry.setCrc(crc.getValue());
+            }
+
+            zip.putNextEntry(zipEntry);
+            zip.write(data, 0, data.length);
+            zip.closeEntry();
+        }
+
+        @Override
+        public void putFile(Entry entry, InputStream in) throws IOException {
+            // A streamed file isn't read twice for its checksum, its blocks are stored by the deflater instead
+            boolean compressed = isCompressed(entry.name);
+            if (compressed) zip.setLevel(Deflater.NO_COMPRESSION);
+
+            zip.putNextEntry(newEntry(entry));
+            int length;
+            while ((length = in.read(buffer)) != -1)
+                zip.write(buffer, 0, length);
+            zip.closeEntry();
+
+            if (compressed) zip.setLevel(Deflater.DEFAULT_COMPRESSION);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            zip.finish();
+            zip.flush();
+        }
+    }
+
+    /**
+     * POSIX tar, the long paths and sizes are given by pax headers
+     **/
+    private static class TarWriter implements ArchiveWriter {
+
+        private static final long MAX_OCTAL_SIZE = 077777777777L;
+
+        private final OutputStream out;
+        private final byte[] buffer = new byte[64 * 1024];
+
+        TarWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void putDirectory(Entry entry) throws IOException {
+            writeHeader(entry.name, 0, entry.lastModified, '5');
+        }
+
+        @Override
+        public void putFile(Entry entry, byte[] data) throws IOException {
+            writeHeader(entry.name, entry.size, entry.lastModified, '0');
+
+            // The size is announced before the data, a file that shrank meanwhile is padded
+            int length = (int) Math.min(data.length, entry.size);
+            out.write(data, 0, length);
+            pad(entry.size - length);
+            pad(padding(entry.size));
+        }
+
+        @Override
+        public void putFile(Entry entry, InputStream in) throws IOException {
+            writeHeader(entry.name, entry.size, entry.lastModified, '0');
+
+            long remaining = entry.size;
+            int length;
+            while (remaining > 0 && (length = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                out.write(buffer, 0, length);
+                remaining -= length;
+            }
+            pad(remaining);
+            pad(padding(entry.size));
+        }
+
+        private void writeHeader(String name, long size, long lastModified, char type) throws IOException {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+
+            if (nameBytes.length > 100 || size > MAX_OCTAL_SIZE) {
+                StringBuilder records = new StringBuilder();
+                if (nameBytes.length > 100) records.append(paxRecord("path", name));
+                if (size > MAX_OCTAL_SIZE) records.append(paxRecord("size", Long.toString(size)));
+
+                byte[] pax = records.toString().getBytes(StandardCharsets.UTF_8);
+                out.write(header(Arrays.copyOf(nameBytes, Math.min(nameBytes.length, 100)), pax.length, lastModified, 'x'));
+                out.write(pax);
+                pad(padding(pax.length));
+            }
+
+            out.write(header(nameBytes, size, lastModified, type));
+        }
+
+        private static byte[] header(byte[] name, long size, long lastModified, char type) {
+            byte[] header = new byte[TAR_BLOCK];
+
+            System.arraycopy(name, 0, header, 0, Math.min(name.length, 100));
+            octal(header, 100, 8, type == '5' ? 0755 : 0644);
+            octal(header, 108, 8, 0);
+            octal(header, 116, 8, 0);
+            octal(header, 124, 12, Math.min(size, MAX_OCTAL_SIZE));
+            octal(header, 136, 12, lastModified / 1000);
+            header[156] = (byte) type;
+            System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+
+            // The checksum is computed with its own field filled with spaces
+            Arrays.fill(header, 148, 156, (byte) ' ');
+            int checksum = 0;
+            for (byte b : header) checksum += b & 0xff;
+            octal(header, 148, 7, checksum);
+
+            return header;
+        }
+
+        /** Write a number in octal, zero padded and followed by a NUL */
+        private static void octal(byte[] header, int offset, int length, long value) {
+            String digits = Long.toOctalString(value);
+            int start = offset + length - 1 - digits.length();
+
+            Arrays.fill(header, offset, start, (byte) '0');
+            for (int i = 0; i < digits.length(); i++)
+                header[start + i] = (byte) digits.charAt(i);
+            header[offset + length - 1] = 0;
+        }
+
+        /** @return A pax record, prefixed by its own length */
+        private static String paxRecord(String key, String value) {
+            int length = key.length() + value.getBytes(StandardCharsets.UTF_8).length + 3;
+            int total = length + Integer.toString(length).length();
+            if (Integer.toString(total).length() > Integer.toString(length).length()) total++;
+
+            return total + " " + key + "=" + value + "\n";
+        }
+
+        private static long padding(long size) {
+            return (TAR_BLOCK - size % TAR_BLOCK) % TAR_BLOCK;
+        }
+
+        private void pad(long length) throws IOException {
+            Arrays.fill(buffer, 0, (int) Math.min(buffer.length, length), (byte) 0);
+            while (length > 0) {
+                int chunk = (int) Math.min(buffer.length, length);
+                out.write(buffer, 0, chunk);
+                length -= chunk;
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            pad(2 * TAR_BLOCK);
+            out.flush();
+        }
+    }
+}
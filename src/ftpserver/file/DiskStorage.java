@@ -0,0 +1,88 @@
+package ftpserver.file;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * Store the files in a directory of the local file system
+ **/
+public class DiskStorage implements Storage {
+
+    private final File rootDir;
+
+    public DiskStorage(File rootDir) {
+        this.rootDir = rootDir;
+
+        if (!rootDir.exists()) rootDir.mkdirs();
+    }
+
+    @Override
+    public File toLocalFile(String path) {
+        return path.equals("/") ? rootDir : new File(rootDir, path.substring(1));
+    }
+
+    @Override
+    public FileStat stat(String path) {
+        return FileStat.of(toLocalFile(path));
+    }
+
+    @Override
+    public String[] list(String path) {
+        return toLocalFile(path).list();
+    }
+
+    @Override
+    public FileChannel openRead(String path) throws IOException {
+        try {
+            return FileChannel.open(toLocalFile(path).toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException("File not found");
+        }
+    }
+
+    @Override
+    public FileChannel openWrite(String path, boolean truncate) throws IOException {
+        try {
+            if (truncate)
+                return FileChannel.open(toLocalFile(path).toPath(), StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+
+            return FileChannel.open(toLocalFile(path).toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException("Directory not found");
+        }
+    }
+
+    @Override
+    public void rename(String from, String to) throws IOException {
+        Path source = toLocalFile(from).toPath();
+        Path target = toLocalFile(to).toPath();
+
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public boolean delete(String path) {
+        return toLocalFile(path).delete();
+    }
+
+    @Override
+    public boolean mkdirs(String path) {
+        return toLocalFile(path).mkdirs();
+    }
+
+    @Override
+    public void syncDirectory(String path) {
+        // Some systems can't open directories, in that case nothing is done
+        try (FileChannel channel = FileChannel.open(toLocalFile(path).toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {}
+    }
+}
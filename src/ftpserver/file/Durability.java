@@ -0,0 +1,17 @@
+package ftpserver.file;
+
+/**
+ * How received files are forced to disk before the transfer is confirmed
+ **/
+public enum Durability {
+
+    /** Let the operating system write the data when it wants */
+    NONE,
+
+    /** Force every file to disk before sending the reply */
+    FSYNC,
+
+    /** Force the files received in the same interval with a single sweep,
+     * the reply is sent when the sweep containing the file completes */
+    GROUP_COMMIT
+}
@@ -0,0 +1,135 @@
+package ftpserver.file;
+
+import ftpserver.file.DigestAlgorithm.Hasher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Compute file digests over memory mapped regions, channels that can't be
+ * mapped are read in small buffers instead
+ *
+ * Combinable checksums (CRC) of big files are split in chunks hashed in parallel
+ **/
+public class FileDigester {
+
+    /** Size of each region mapped while hashing sequentially */
+    private static final long MAP_SIZE = 64 * 1024 * 1024;
+
+    /** Size of each chunk hashed in parallel */
+    private static final long CHUNK_SIZE = 16 * 1024 * 1024;
+
+    /** Ranges smaller than this are always hashed sequentially */
+    private static final long PARALLEL_THRESHOLD = 2 * CHUNK_SIZE;
+
+    /** Size of the buffer used when the channel can't be mapped */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Compute the digest of a file range
+     *
+     * @param file The file
+     * @param algorithm The digest algorithm
+     * @param start The first byte of the range
+     * @param end The end of the range (exclusive)
+     * @return The digest as lowercase hex */
+    public static String digest(File file, DigestAlgorithm algorithm, long start, long end) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return digest(channel, algorithm, start, end);
+        }
+    }
+
+    /** Compute the digest of a channel range, the channel is left open
+     *
+     * @param channel The channel, only positional reads are used
+     * @param algorithm The digest algorithm
+     * @param start The first byte of the range
+     * @param end The end of the range (exclusive)
+     * @return The digest as lowercase hex */
+    public static String digest(FileChannel channel, DigestAlgorithm algorithm, long start, long end) throws IOException {
+        end = Math.min(end, channel.size());
+
+        if (algorithm.isCombinable() && end - start >= PARALLEL_THRESHOLD)
+            return String.format("%08x", parallelChecksum(channel, algorithm, start, end));
+
+        Hasher hasher = algorithm.newHasher();
+        update(hasher, channel, start, end);
+        return hasher.digest();
+    }
+
+    private static void update(Hasher hasher, FileChannel channel, long start, long end) throws IOException {
+        for (long position = start; position < end; position += MAP_SIZE) {
+            long length = Math.min(MAP_SIZE, end - position);
+            MappedByteBuffer buffer;
+
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            } catch (UnsupportedOperationException e) {
+                read(hasher, channel, position, end);
+                return;
+            }
+
+            hasher.update(buffer);
+        }
+    }
+
+    private static void read(Hasher hasher, FileChannel channel, long start, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        for (long position = start; position < end; ) {
+            buffer.clear().limit((int) Math.min(BUFFER_SIZE, end - position));
+
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new IOException("Unexpected end of file");
+
+            buffer.flip();
+            hasher.update(buffer);
+            position += read;
+        }
+    }
+
+    private static long parallelChecksum(FileChannel channel, DigestAlgorithm algorithm,
+                                         long start, long end) throws IOException {
+        List<Future<Long>> chunks = new ArrayList<>();
+
+        for (long position = start; position < end; position += CHUNK_SIZE) {
+            long chunkStart = position;
+            long chunkEnd = Math.min(position + CHUNK_SIZE, end);
+
+            chunks.add(ForkJoinPool.commonPool().submit(() -> {
+                Hasher hasher = algorithm.newHasher();
+                update(hasher, channel, chunkStart, chunkEnd);
+                return hasher.getValue();
+            }));
+        }
+
+        long crc = 0;
+        long position = start;
+        try {
+            for (Future<Long> chunk : chunks) {
+                long chunkLength = Math.min(CHUNK_SIZE, end - position);
+                crc = position == start ? chunk.get() : algorithm.combine(crc, chunk.get(), chunkLength);
+                position += chunkLength;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Digest interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            for (Future<Long> chunk : chunks)
+                chunk.cancel(false);
+        }
+
+        return crc;
+    }
+}
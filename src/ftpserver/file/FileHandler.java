@@ -1,63 +1,249 @@
 package ftpserver.file;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
-
-import static tests.Test.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class FileHandler {
 
     private final File rootDir;
+    private final Path rootPath;
+
+    /** Where the content of the files is kept */
+    private final Storage storage;
+
+    /** Digests already computed, shared by every connection */
+    private DigestCache digestCache = new DigestCache();
+
+    /** Notified when a file changes */
+    private final List<FileListener> listeners = new CopyOnWriteArrayList<>();
+
+    /** Report changes made by other programs, null until something needs it */
+    private FileWatcher watcher;
+
+    /** Index of the file names, null if disabled */
+    private FileIndex index;
 
+    /** Space used by the directories, null if the quotas are disabled */
+    private QuotaManager quotas;
+
+    /** Attributes read recently, 2 seconds by default */
+    private final StatCache statCache;
+
+    /** Coordinate the sessions reading, writing, renaming and deleting the same files */
+    private final PathLockManager locks = new PathLockManager();
+
+    /** Serve the files of a directory of the local file system */
     public FileHandler(File rootDir) {
+        this(rootDir, new DiskStorage(rootDir));
+    }
+
+    /** @param rootDir The root of the paths given to the handler, the files are
+     *                 only kept in this directory if the storage is a {@link DiskStorage}
+     * @param storage Where the files are stored */
+    public FileHandler(File rootDir, Storage storage) {
         this.rootDir = rootDir;
+        this.rootPath = rootDir.toPath().toAbsolutePath().normalize();
+        this.storage = storage;
 
-        if(!rootDir.exists()) rootDir.mkdirs();
+        statCache = new StatCache(2000, file -> storage.stat(toStoragePath(file)), this::toStoragePath);
+        addListener(statCache);
+        addListener(new DigestInvalidator());
     }
 
     public File getRoot() {
         return rootDir;
     }
 
+    public Storage getStorage() {
+        return storage;
+    }
+
+    public PathLockManager getLocks() {
+        return locks;
+    }
+
+    public DigestCache getDigestCache() {
+        return digestCache;
+    }
+
+    /** Set the cache used to store the digests, use a persistent one to keep them across restarts */
+    public void setDigestCache(DigestCache digestCache) {
+        this.digestCache = digestCache;
+    }
+
+    public void addListener(FileListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(FileListener listener) {
+        listeners.remove(listener);
+    }
+
+    void fireCreated(File file) {
+        for (FileListener listener : listeners) listener.fileCreated(file);
+    }
+
+    void fireDeleted(File file) {
+        for (FileListener listener : listeners) listener.fileDeleted(file);
+    }
+
+    void fireModified(File file) {
+        for (FileListener listener : listeners) listener.fileModified(file);
+    }
+
+    void fireDirectoryChanged(File dir) {
+        for (FileListener listener : listeners) listener.directoryChanged(dir);
+    }
+
+    /** Start reporting to the listeners the changes made by other programs */
+    public synchronized void startWatching() throws IOException {
+        // Only the local file system can be watched
+        if (storage.toLocalFile("/") == null) return;
+
+        if (watcher == null) watcher = new FileWatcher(this);
+    }
+
+    public synchronized void stopWatching() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
+    }
+
+    /** Build an index of the file names, kept updated with the changes made by the server
+     * and by other programs */
+    public synchronized void createIndex() throws IOException {
+        if (index != null) return;
+
+        FileIndex index = new FileIndex(this);
+        index.build();
+        addListener(index);
+        startWatching();
+
+        this.index = index;
+    }
+
+    /** @return The index of the file names, null if it wasn't created */
+    public FileIndex getIndex() {
+        return index;
+    }
+
+    /** Count the space used by the directories to enforce their quotas, kept updated with
+     * the changes made by the server and by other programs
+     *
+     * @param snapshot Where the sizes are saved so the next start doesn't scan the tree, null to always scan */
+    public synchronized QuotaManager createQuotas(File snapshot) throws IOException {
+        if (quotas != null) return quotas;
+
+        QuotaManager quotas = new QuotaManager(this, snapshot, 60000);
+        quotas.build();
+        addListener(quotas);
+        startWatching();
+
+        this.quotas = quotas;
+        return quotas;
+    }
+
+    /** @return The space used by the directories, null if the quotas weren't created */
+    public QuotaManager getQuotas() {
+        return quotas;
+    }
+
+    /** @return The path of a file relative to the root, without leading slash */
     public String getPath(File file) {
-        return rootDir.toURI().relativize(file.toURI()).getPath();
+        return toStoragePath(file).substring(1);
     }
 
-    public boolean delete(File file) {
-        return file.delete();
+    /** @return The normalized path of a file in the storage, starting with a slash.
+     *          It starts with "/.." if the file is outside of the root */
+    String toStoragePath(File file) {
+        Path path = rootPath.relativize(file.toPath().toAbsolutePath().normalize());
+        return "/" + path.toString().replace(File.separatorChar, '/');
+    }
+
+    /** @throws IOException If the file, or a file in the directory, is in use */
+    public boolean delete(File file) throws IOException {
+        String path = toStoragePath(file);
+
+        PathLockManager.PathLock lock = storage.stat(path).isDirectory() ? locks.lockTrees(path) : locks.lockWrite(path);
+        try {
+            if (!storage.delete(path)) return false;
+        } finally {
+            lock.close();
+        }
+
+        fireDeleted(file);
+        return true;
+    }
+
+    /** Get the attributes of a file, they may have been read up to the stat cache TTL ago */
+    public FileStat stat(File file) {
+        return statCache.get(file);
+    }
+
+    /** Get the current attributes of a file from the storage, for the callers which can't use stale ones */
+    public FileStat statUncached(File file) {
+        return storage.stat(toStoragePath(file));
+    }
+
+    public StatCache getStatCache() {
+        return statCache;
     }
 
     public boolean exists(File file) {
-        return file.exists();
+        return stat(file).exists();
     }
 
     public boolean isDirectory(File file) {
-        return file.isDirectory();
+        return stat(file).isDirectory();
     }
 
     public boolean isReadable(File file) {
-        return file.canRead();
+        return stat(file).isReadable();
     }
 
     public boolean isWritable(File file) {
-        return file.canWrite();
+        return stat(file).isWritable();
     }
 
     public boolean isExecutable(File file) {
-        return file.canExecute();
+        return stat(file).isExecutable();
+    }
+
+    /** @return Whether the file is a symbolic link of the local file system,
+     *          the walks of the tree don't follow them as they may lead outside of the root or in a loop */
+    public boolean isSymbolicLink(File file) {
+        return isSymbolicLink(toStoragePath(file));
+    }
+
+    private boolean isSymbolicLink(String path) {
+        if (path.equals("/")) return false;
+
+        File local = storage.toLocalFile(path);
+        return local != null && Files.isSymbolicLink(local.toPath());
     }
 
     public int getHardLinks(File file) {
-        return file.isDirectory() ? 3 : 1;
+        return isDirectory(file) ? 3 : 1;
     }
 
     public long size(File file) {
-        return file.length();
+        return stat(file).getSize();
     }
 
     public String getName(File file) {
@@ -72,19 +258,167 @@ public class FileHandler {
     }
 
     public long getLastModified(File file) {
-        return file.lastModified();
+        return stat(file).getLastModified();
     }
 
     public File[] getListFiles(File file) {
-        return file.listFiles();
+        String[] names = storage.list(toStoragePath(file));
+        if (names == null) return null;
+
+        File[] files = new File[names.length];
+        for (int i = 0; i < names.length; i++)
+            files[i] = new File(file, names[i]);
+        return files;
     }
 
     public boolean mkdirs(File file) {
-        return file.mkdirs();
+        if (!storage.mkdirs(toStoragePath(file))) return false;
+
+        fireCreated(file);
+        return true;
     }
 
+    /** @throws IOException If one of the files, or a file in one of the directories, is in use */
     public void rename(File fileFrom, File fileTo) throws IOException {
-        if (!fileFrom.renameTo(fileTo)) throw new IOException("Couldn't rename the file");
+        String from = toStoragePath(fileFrom);
+        String to = toStoragePath(fileTo);
+
+        PathLockManager.PathLock lock = locks.lockTrees(from, to);
+        try {
+            storage.rename(from, to);
+        } finally {
+            lock.close();
+        }
+
+        fireDeleted(fileFrom);
+        fireCreated(fileTo);
+    }
+
+    /** Copy a file, or a directory with its content, without sending the data through the server.
+     * The data is moved by {@link FileChannel#transferTo} so the kernel copies it, the files of
+     * a directory are copied in parallel
+     *
+     * @throws IOException If the target is inside the source, or a file can't be copied */
+    public void copy(File fileFrom, File fileTo) throws IOException {
+        String from = toStoragePath(fileFrom);
+        String to = toStoragePath(fileTo);
+
+        if (to.equals(from) || to.startsWith(from.equals("/") ? "/" : from + "/"))
+            throw new IOException("Can't copy a directory into itself");
+
+        FileStat source = storage.stat(from);
+        if (!source.exists()) throw new FileNotFoundException(from);
+        boolean existed = storage.stat(to).exists();
+
+        try {
+            if (source.isDirectory()) ForkJoinPool.commonPool().invoke(new CopyTask(from, to, source));
+            else copyFile(from, to, source.getSize());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            // What was copied before a failure is kept
+            if (!existed) fireCreated(fileTo);
+            else if (source.isDirectory()) fireDirectoryChanged(fileTo);
+            else fireModified(fileTo);
+        }
+    }
+
+    private void copyFile(String from, String to, long size) throws IOException {
+        PathLockManager.PathLock readLock = locks.lockRead(from);
+        try {
+            PathLockManager.PathLock writeLock = locks.lockWrite(to);
+            try (QuotaManager.Reservation reservation = quotas != null ? quotas.open(to, 0, true) : null;
+                 FileChannel in = storage.openRead(from)) {
+
+                if (reservation != null) reservation.write(size);
+
+                try (FileChannel out = storage.openWrite(to, true)) {
+                    long position = 0;
+                    while (position < size) {
+                        long copied = in.transferTo(position, size - position, out);
+                        if (copied <= 0) break;
+                        position += copied;
+                    }
+                }
+            } finally {
+                writeLock.close();
+            }
+        } finally {
+            readLock.close();
+        }
+    }
+
+    /**
+     * Copy of a file or of a directory, the content of a directory is copied by subtasks
+     **/
+    private class CopyTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String from;
+        private final String to;
+        private final FileStat stat;
+
+        CopyTask(String from, String to, FileStat stat) {
+            this.from = from;
+            this.to = to;
+            this.stat = stat;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                if (!stat.isDirectory()) {
+                    copyFile(from, to, stat.getSize());
+                    return;
+                }
+
+                if (!storage.mkdirs(to) && !storage.stat(to).isDirectory())
+                    throw new IOException("Can't create " + to);
+
+                String[] names = storage.list(from);
+                if (names == null) return;
+
+                List<CopyTask> tasks = new ArrayList<>(names.length);
+                for (String name : names) {
+                    String child = from + "/" + name;
+                    // Links aren't followed, their target may be outside of the root or contain the target
+                    if (isSymbolicLink(child)) continue;
+
+                    tasks.add(new CopyTask(child, to + "/" + name, storage.stat(child)));
+                }
+                invokeAll(tasks);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Drop the digests of the files changed, renamed or deleted
+     **/
+    private class DigestInvalidator implements FileListener {
+
+        @Override
+        public void fileCreated(File file) {
+            digestCache.remove(getPath(file));
+        }
+
+        @Override
+        public void fileDeleted(File file) {
+            digestCache.remove(getPath(file));
+        }
+
+        @Override
+        public void fileModified(File file) {
+            digestCache.remove(getPath(file));
+        }
+
+        /** Only the files directly inside may have changed, the deeper ones have their own events */
+        @Override
+        public void directoryChanged(File dir) {
+            digestCache.removeChildren(getPath(dir));
+        }
     }
 
     public File findFile(String path) throws IOException {
@@ -108,62 +442,305 @@ public class FileHandler {
     public boolean isInside(File dir, File file) {
         if (file.equals(dir)) return true;
 
+        String dirPath = toStoragePath(dir);
+        String path = toStoragePath(file);
+        if (!path.startsWith(dirPath.equals("/") ? "/" : dirPath + "/") || isOutside(path)) return false;
+
+        // Links on the local file system may lead outside of the root
+        File localDir = storage.toLocalFile(dirPath);
+        if (localDir == null) return true;
+
         try {
-            return file.getCanonicalPath().startsWith(dir.getCanonicalPath() + File.separator);
+            String canonical = storage.toLocalFile(path).getCanonicalPath();
+            String dirCanonical = localDir.getCanonicalPath();
+            return canonical.equals(dirCanonical) || canonical.startsWith(dirCanonical + File.separator);
         } catch (IOException e) {
             return false;
         }
+    }
 
+    static boolean isOutside(String path) {
+        return path.equals("/..") || path.startsWith("/../");
     }
 
+    /** Open a file for reading, it can't be written, renamed or deleted until the stream is closed
+     *
+     * @throws IOException If the file is being written, renamed or deleted */
     public InputStream getFileInputStream(File file, long start) throws IOException {
-        if (start <= 0)
-            return new FileInputStream(file);
+        String path = toStoragePath(file);
+        PathLockManager.PathLock lock = locks.lockRead(path);
 
-        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel;
+        try {
+            channel = storage.openRead(path);
+            if (start > 0) channel.position(start);
+        } catch (IOException | RuntimeException e) {
+            lock.close();
+            throw e;
+        }
 
-        return new FileInputStream(raf.getFD()) {
+        return new FilterInputStream(Channels.newInputStream(channel)) {
             @Override
             public void close() throws IOException {
-                super.close();
-                raf.close();
+                try {
+                    super.close();
+                } finally {
+                    lock.close();
+                }
             }
         };
     }
 
+    /** Open a file for writing, nobody else can use it until the stream is closed
+     *
+     * @throws IOException If the file is being read, written, renamed or deleted
+     * @throws QuotaExceededException When a write would go over the quota of a directory */
     public OutputStream getFileOutputStream(File file, long start) throws IOException {
-        if (start <= 0)
-            return new FileOutputStream(file, false);
-        else if (start == file.length())
-            return new FileOutputStream(file, true);
+        String path = toStoragePath(file);
+        PathLockManager.PathLock lock = locks.lockWrite(path);
+
+        OutputStream out;
+        boolean created;
+        QuotaManager.Reservation reservation = null;
+        try {
+            created = !storage.stat(path).exists();
+            if (quotas != null) reservation = quotas.open(path, start, start <= 0);
 
-        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            FileChannel channel = storage.openWrite(path, start <= 0);
+            if (start > 0) channel.position(start);
+
+            out = Channels.newOutputStream(channel);
+        } catch (IOException | RuntimeException e) {
+            if (reservation != null) reservation.close();
+            lock.close();
+            throw e;
+        }
+
+        if (created) fireCreated(file);
+
+        // Report the new content once it is written
+        QuotaManager.Reservation quota = reservation;
+        return new FilterOutputStream(out) {
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (quota != null) quota.write(1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (quota != null) quota.write(len);
+                out.write(b, off, len);
+            }
 
-        return new FileOutputStream(raf.getFD()) {
             @Override
             public void close() throws IOException {
-                super.close();
-                raf.close();
+                try {
+                    super.close();
+                } finally {
+                    if (quota != null) quota.close();
+                    lock.close();
+                }
+                if (!closed) fireModified(file);
+                closed = true;
             }
         };
     }
 
+    /** Compute the digest of a file range, using the cached value when the file didn't change
+     *
+     * @param file The file
+     * @param algorithm The digest algorithm
+     * @param start The first byte of the range
+     * @param end The end of the range (exclusive), it is capped to the file size
+     * @return The digest as lowercase hex */
+    public String digest(File file, DigestAlgorithm algorithm, long start, long end) throws IOException {
+        // The cached digest is valid only for the current attributes
+        String path = toStoragePath(file);
+        FileStat stat = storage.stat(path);
+
+        if (!stat.exists() || stat.isDirectory())
+            throw new FileNotFoundException("File not found");
+
+        long size = stat.getSize();
+        long lastModified = stat.getLastModified();
+        end = Math.min(end, size);
+
+        if (start < 0 || start > end)
+            throw new IOException("Invalid range");
+
+        String key = getPath(file);
+        String digest = digestCache.get(key, algorithm, start, end, size, lastModified);
+
+        if (digest == null) {
+            // An upload can't change the file while it is read
+            PathLockManager.PathLock lock = locks.lockRead(path);
+            try (FileChannel channel = storage.openRead(path)) {
+                digest = FileDigester.digest(channel, algorithm, start, end);
+            } finally {
+                lock.close();
+            }
+
+            // Don't cache the digest if the file changed while reading it
+            FileStat after = storage.stat(path);
+            if (after.getSize() == size && after.getLastModified() == lastModified)
+                digestCache.put(key, algorithm, start, end, size, lastModified, digest);
+        }
+
+        return digest;
+    }
+
+    /** @return The size of a file once its line endings are translated to CRLF for a TYPE A transfer */
+    public long getAsciiSize(File file) throws IOException {
+        // The size is cached like the digests, as long as the file doesn't change
+        String path = toStoragePath(file);
+        FileStat stat = storage.stat(path);
+        String key = getPath(file);
+
+        long cached = digestCache.getAsciiSize(key, stat.getSize(), stat.getLastModified());
+        if (cached >= 0) return cached;
+
+        long size = 0;
+        byte previous = 0;
+        byte[] buffer = new byte[64 * 1024];
+
+        try (FileChannel channel = storage.openRead(path)) {
+            int length;
+            while ((length = channel.read(ByteBuffer.wrap(buffer))) >= 0) {
+                if (length == 0) continue;
+
+                size += length + AsciiOutputStream.countBareLf(buffer, 0, length, previous);
+                previous = buffer[length - 1];
+            }
+        }
+
+        FileStat after = storage.stat(path);
+        if (after.getSize() == stat.getSize() && after.getLastModified() == stat.getLastModified())
+            digestCache.putAsciiSize(key, stat.getSize(), stat.getLastModified(), size);
+
+        return size;
+    }
+
+    /** Find where a TYPE A transfer restarts in a file
+     *
+     * @param file The file
+     * @param offset The offset in the data with the line endings translated to CRLF
+     * @return The offset in the file */
+    public long toFileOffset(File file, long offset) throws IOException {
+        long translated = 0;
+        long position = 0;
+        byte previous = 0;
+        byte[] buffer = new byte[64 * 1024];
+
+        try (FileChannel channel = storage.openRead(toStoragePath(file))) {
+            int length;
+            while (translated < offset && (length = channel.read(ByteBuffer.wrap(buffer))) >= 0) {
+                int i = 0;
+
+                while (i < length) {
+                    // The bytes up to the next LF are sent as they are
+                    int lf = AsciiOutputStream.indexOf(buffer, i, length, (byte) '\n');
+                    int count = (int) Math.min((lf < 0 ? length : lf) - i, offset - translated);
+
+                    translated += count;
+                    position += count;
+                    i += count;
+                    if (lf < 0 || translated == offset) break;
+
+                    // A LF without CR is sent as CRLF
+                    if ((lf > 0 ? buffer[lf - 1] : previous) != '\r') translated++;
+                    if (translated >= offset) break;
+
+                    translated++;
+                    position++;
+                    i++;
+                }
+
+                if (length > 0) previous = buffer[length - 1];
+            }
+        }
+
+        return position;
+    }
+
+    /** Reserve space for a file, the data already in the file is kept
+     *
+     * @param file The file
+     * @param size The size the file is extended to */
+    public void allocate(File file, long size) throws IOException {
+        try (FileChannel channel = storage.openWrite(toStoragePath(file), false)) {
+            if (channel.size() < size)
+                channel.write(ByteBuffer.allocate(1), size - 1);
+        }
+        fireModified(file);
+    }
+
+    public void truncate(File file, long size) throws IOException {
+        try (FileChannel channel = storage.openWrite(toStoragePath(file), false)) {
+            channel.truncate(size);
+        }
+        fireModified(file);
+    }
+
+    /** Force the content of a file to disk */
+    public void sync(File file) throws IOException {
+        try (FileChannel channel = storage.openWrite(toStoragePath(file), false)) {
+            channel.force(true);
+        }
+    }
+
+    /** Force a directory to disk, so the files created or renamed in it are durable.
+     * Some systems can't open directories, in that case nothing is done */
+    public void syncDirectory(File dir) {
+        storage.syncDirectory(toStoragePath(dir));
+    }
+
+    /** Create a hidden temporary file next to the file it will replace */
+    public File createTempFile(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+
+        while (true) {
+            File temp = new File(dir, "." + file.getName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".part");
+            String path = toStoragePath(temp);
+
+            if (storage.stat(path).exists()) continue;
+
+            storage.openWrite(path, true).close();
+            return temp;
+        }
+    }
+
+    /** Atomically replace a file with a temporary one
+     *
+     * @param temp The temporary file
+     * @param file The file that is replaced */
+    public void commit(File temp, File file) throws IOException {
+        storage.rename(toStoragePath(temp), toStoragePath(file));
+
+        fireDeleted(temp);
+        fireCreated(file);
+    }
+
     public String getFormat(File file) {
+        FileStat stat = stat(file);
+
         return String.format("%s%s %3d %-9s %-9s %9d %s %s\r\n",
-                (isDirectory(file) ? "d" : "-"),
-                getPermissionsFormat(file),
-                getHardLinks(file),
-                getOwner(file),
+                (stat.isDirectory() ? "d" : "-"),
+                getPermissionsFormat(stat),
+                stat.isDirectory() ? 3 : 1,
+                stat.getOwner(),
                 getGroup(),
-                size(file),
-                formatDate(getLastModified(file)),
+                stat.getSize(),
+                formatDate(stat.getLastModified()),
                 getName(file));
     }
 
-    private String getPermissionsFormat(File file) {
-        return (isReadable(file) ? "r" : "-") +
-                (isWritable(file) ? "w" : "-") +
-                (isExecutable(file) ? "x" : "-") +
+    private String getPermissionsFormat(FileStat stat) {
+        return (stat.isReadable() ? "r" : "-") +
+                (stat.isWritable() ? "w" : "-") +
+                (stat.isExecutable() ? "x" : "-") +
                 "-" +
                 "-" +
                 "-" +
@@ -174,13 +751,7 @@ public class FileHandler {
     }
 
     public String getOwner(File file) {
-        try {
-            Path path = Paths.get(file.getCanonicalPath());
-            return Files.getOwner(path).getName();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return null;
+        return stat(file).getOwner();
     }
 
     public String getGroup() {
@@ -188,42 +759,52 @@ public class FileHandler {
         //In windows is not possible to obtain group which the file is part of
     }
 
-    public static SimpleDateFormat YEAR_FORMAT = new SimpleDateFormat("MMM dd yyyy");
+    public static final DateTimeFormatter YEAR_FORMAT =
+            DateTimeFormatter.ofPattern("MMM dd yyyy", Locale.ENGLISH).withZone(ZoneId.systemDefault());
 
     private String formatDate(long date) {
-        return YEAR_FORMAT.format(new Date(date));
+        return YEAR_FORMAT.format(Instant.ofEpochMilli(date));
     }
 
     public String getFacts(File file, String[] options) {
+        return getFacts(file, options, getName(file));
+    }
+
+    /** Get the facts of a file in the MLSx format
+     *
+     * @param file The file
+     * @param options The facts to include
+     * @param name The name written after the facts */
+    public String getFacts(File file, String[] options, String name) {
         // Intended Format
         // modify=20170808052431;size=7045120;type=file;perm=rfadw; video.mp4
         // modify=20170526215012;size=380;type=file;perm=rfadw; data.txt
         // modify=20171012082146;size=0;type=dir;perm=elfpcm; directory
 
         StringBuilder facts = new StringBuilder();
-        boolean dir = isDirectory(file);
+        FileStat stat = stat(file);
+        boolean dir = stat.isDirectory();
 
         for(String opt : options) {
             opt = opt.toLowerCase();
 
             switch (opt) {
                 case "modify":
-                    facts.append("modify=").append(toMdtmTimestamp(getLastModified(file))).append(";");
+                    facts.append("modify=").append(toMdtmTimestamp(stat.getLastModified())).append(";");
                     break;
                 case "size":
-                    facts.append("size=").append(size(file)).append(";");
+                    facts.append("size=").append(stat.getSize()).append(";");
                     break;
                 case "type":
                     facts.append("type=").append(dir ? "dir" : "file").append(";");
                     break;
                 case "perm":
-                    int perms = getPermissions(file);
                     String perm = "";
 
-                    if (hasPermission(perms, CAT_OWNER + TYPE_READ)) {
+                    if (stat.isReadable()) {
                         perm += dir ? "el" : "r";
                     }
-                    if (hasPermission(perms, CAT_OWNER + TYPE_WRITE)) {
+                    if (stat.isWritable()) {
                         perm += "f";
                         perm += dir ? "pcm" : "adw";
                     }
@@ -233,14 +814,16 @@ public class FileHandler {
             }
         }
 
-        facts.append(" ").append(getName(file)).append("\r\n");
+        facts.append(" ").append(name).append("\r\n");
         return facts.toString();
     }
 
-    private static final SimpleDateFormat mdtmFormat = new SimpleDateFormat("YYYYMMddHHmmss", Locale.ENGLISH);
+    /** Timestamps of MDTM and MLSx are in UTC (RFC 3659) */
+    private static final DateTimeFormatter mdtmFormat =
+            DateTimeFormatter.ofPattern("yyyyMMddHHmmss", Locale.ENGLISH).withZone(ZoneOffset.UTC);
 
     public String toMdtmTimestamp(long time) {
-        return mdtmFormat.format(new Date(time));
+        return mdtmFormat.format(Instant.ofEpochMilli(time));
     }
 
     public String validateFileName(String path) {
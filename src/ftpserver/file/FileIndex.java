@@ -0,0 +1,378 @@
+package ftpserver.file;
+
+import ftpserver.log.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory index of the file names under the root of a {@link FileHandler}
+ *
+ * The tree is stored as a trie of interned path segments, where the children
+ * of each directory are kept in a sorted array
+ **/
+public class FileIndex implements FileListener {
+
+    public static final String TAG = "FileIndex";
+
+    private final FileHandler fh;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private Node root = new Node("", true);
+
+    public FileIndex(FileHandler fh) {
+        this.fh = fh;
+    }
+
+    /** Index the whole tree, directories are listed in parallel */
+    public void build() {
+        long start = System.currentTimeMillis();
+        Node tree = scan(fh.getRoot(), "");
+
+        lock.writeLock().lock();
+        try {
+            root = tree;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        Log.i(TAG, "Indexed " + count(tree) + " files in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /** Search the files whose name matches a pattern
+     *
+     * @param pattern A glob (with *, ? or [...]) matched against the name, or against the path
+     *                when it contains a slash; otherwise a case insensitive substring of the name
+     * @param limit Maximum number of results
+     * @return The paths of the files found, relative to the root and starting with a slash */
+    public List<String> search(String pattern, int limit) {
+        List<String> results = new ArrayList<>();
+        search(pattern, limit, results::add);
+        return results;
+    }
+
+    /** Search the files whose name matches a pattern, giving each one as soon as it is found
+     *
+     * The index is locked only while the children of a directory are copied, so the results
+     * can be written to a slow client without blocking the updates of the index
+     *
+     * @param pattern The pattern, as in {@link #search(String, int)}
+     * @param limit Maximum number of results
+     * @param results Receive the paths of the files found, relative to the root and starting with a slash
+     * @return The number of files found */
+    public int search(String pattern, int limit, Consumer<String> results) {
+        NameMatcher matcher = createMatcher(pattern);
+        boolean matchPath = pattern.indexOf('/') >= 0;
+
+        Node tree;
+        lock.readLock().lock();
+        try {
+            tree = root;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return search(tree, "", matcher, matchPath, limit, 0, results);
+    }
+
+    private int search(Node dir, String prefix, NameMatcher matcher, boolean matchPath, int limit, int found,
+                       Consumer<String> results) {
+        Node[] children;
+        lock.readLock().lock();
+        try {
+            if (dir.children == null) return found;
+            children = Arrays.copyOf(dir.children, dir.count);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        for (int i = 0; i < children.length && found < limit; i++) {
+            Node node = children[i];
+            String path = prefix + "/" + node.name;
+
+            if (matchPath ? matcher.matches(path) || matcher.matches(path.substring(1)) : matcher.matches(node.name)) {
+                results.accept(path);
+                found++;
+            }
+
+            found = search(node, path, matcher, matchPath, limit, found, results);
+        }
+
+        return found;
+    }
+
+    /** @return The number of files and directories indexed */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return count(root);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int count(Node dir) {
+        int count = dir.count;
+        for (int i = 0; i < dir.count; i++) {
+            if (dir.children[i].children != null)
+                count += count(dir.children[i]);
+        }
+        return count;
+    }
+
+    @Override
+    public void fileCreated(File file) {
+        String[] segments = segments(file);
+        if (segments == null) return;
+
+        boolean dir = fh.isDirectory(file);
+
+        lock.writeLock().lock();
+        try {
+            Node node = root;
+            for (int i = 0; i < segments.length; i++)
+                node = node.insert(segments[i], dir || i < segments.length - 1);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        // A directory moved into the tree comes with its content
+        if (dir) directoryChanged(file);
+    }
+
+    @Override
+    public void fileDeleted(File file) {
+        String[] segments = segments(file);
+        if (segments == null || segments.length == 0) return;
+
+        lock.writeLock().lock();
+        try {
+            Node parent = find(segments, segments.length - 1);
+            if (parent != null) parent.remove(segments[segments.length - 1]);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void directoryChanged(File dir) {
+        String[] segments = segments(dir);
+        if (segments == null) return;
+
+        if (segments.length == 0) {
+            build();
+            return;
+        }
+
+        // Scan without holding the lock, then replace the subtree
+        Node tree = scan(dir, segments[segments.length - 1]);
+
+        lock.writeLock().lock();
+        try {
+            Node parent = root;
+            for (int i = 0; i < segments.length - 1; i++)
+                parent = parent.insert(segments[i], true);
+
+            parent.replace(tree);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private Node find(String[] segments, int length) {
+        Node node = root;
+        for (int i = 0; i < length && node != null; i++)
+            node = node.get(segments[i]);
+        return node;
+    }
+
+    /** @return The segments of the path relative to the root, null if the file is outside of it */
+    private String[] segments(File file) {
+        String path = fh.getPath(file);
+        if (path.equals("..") || path.startsWith("../")) return null;
+
+        return path.isEmpty() ? new String[0] : path.split("/");
+    }
+
+    private Node scan(File dir, String name) {
+        Node node = new Node(name, true);
+        if (!fh.isSymbolicLink(dir)) ForkJoinPool.commonPool().invoke(new ScanTask(dir, node));
+        return node;
+    }
+
+    class ScanTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File dir;
+        private final Node node;
+
+        ScanTask(File dir, Node node) {
+            this.dir = dir;
+            this.node = node;
+        }
+
+        @Override
+        protected void compute() {
+            File[] files = fh.getListFiles(dir);
+            if (files == null) return;
+
+            Node[] children = new Node[files.length];
+            List<ScanTask> subdirs = new ArrayList<>();
+
+            for (int i = 0; i < files.length; i++) {
+                boolean isDir = fh.isDirectory(files[i]);
+                children[i] = new Node(files[i].getName().intern(), isDir);
+
+                // A link may lead outside of the root or back to an ancestor, it isn't indexed
+                if (isDir && !fh.isSymbolicLink(files[i])) subdirs.add(new ScanTask(files[i], children[i]));
+            }
+
+            Arrays.sort(children, (a, b) -> a.name.compareTo(b.name));
+            node.children = children;
+            node.count = children.length;
+
+            invokeAll(subdirs);
+        }
+    }
+
+    private static NameMatcher createMatcher(String pattern) {
+        if (pattern.matches(".*[*?\\[].*")) {
+            Pattern regex = Pattern.compile(globToRegex(pattern));
+            return name -> regex.matcher(name).matches();
+        }
+
+        return name -> {
+            for (int i = 0; i <= name.length() - pattern.length(); i++) {
+                if (name.regionMatches(true, i, pattern, 0, pattern.length()))
+                    return true;
+            }
+            return false;
+        };
+    }
+
+    private static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    regex.append("[^/]*");
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '[':
+                    int end = glob.indexOf(']', i + 1);
+                    if (end > i + 1) {
+                        String set = glob.substring(i + 1, end);
+                        if (set.startsWith("!")) set = "^" + set.substring(1);
+                        regex.append('[').append(set.replace("\\", "\\\\")).append(']');
+                        i = end;
+                        break;
+                    }
+                    // Not a set, literal [
+                    regex.append(Pattern.quote("["));
+                    break;
+                default:
+                    regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+
+        return regex.toString();
+    }
+
+    @FunctionalInterface
+    private interface NameMatcher {
+        boolean matches(String name);
+    }
+
+    private static class Node {
+
+        final String name;
+
+        /** Sorted children, null for files */
+        Node[] children;
+        int count;
+
+        Node(String name, boolean dir) {
+            this.name = name;
+            if (dir) children = new Node[0];
+        }
+
+        private int indexOf(String name) {
+            int low = 0;
+            int high = count - 1;
+
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = children[mid].name.compareTo(name);
+
+                if (cmp < 0) low = mid + 1;
+                else if (cmp > 0) high = mid - 1;
+                else return mid;
+            }
+            return -(low + 1);
+        }
+
+        Node get(String name) {
+            if (children == null) return null;
+            int i = indexOf(name);
+            return i >= 0 ? children[i] : null;
+        }
+
+        /** Get a child, adding it if it doesn't exist */
+        Node insert(String name, boolean dir) {
+            if (children == null) children = new Node[0];
+
+            int i = indexOf(name);
+            if (i >= 0) {
+                Node node = children[i];
+                if (dir && node.children == null) node.children = new Node[0];
+                return node;
+            }
+
+            Node node = new Node(name.intern(), dir);
+            insertAt(-(i + 1), node);
+            return node;
+        }
+
+        /** Add a child, replacing the one with the same name */
+        void replace(Node node) {
+            int i = indexOf(node.name);
+            if (i >= 0) {
+                children[i] = node;
+                return;
+            }
+            insertAt(-(i + 1), node);
+        }
+
+        private void insertAt(int i, Node node) {
+            if (count == children.length)
+                children = Arrays.copyOf(children, Math.max(4, count + (count >> 1)));
+
+            System.arraycopy(children, i, children, i + 1, count - i);
+            children[i] = node;
+            count++;
+        }
+
+        void remove(String name) {
+            if (children == null) return;
+
+            int i = indexOf(name);
+            if (i < 0) return;
+
+            System.arraycopy(children, i + 1, children, i, count - i - 1);
+            children[--count] = null;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package ftpserver.file;
+
+import java.io.File;
+
+/**
+ * Notified when a file under the root of a {@link FileHandler} changes,
+ * both by the server and, while watching the tree, by other programs
+ **/
+public interface FileListener {
+
+    /** A file or a directory was created */
+    void fileCreated(File file);
+
+    /** A file or a directory was deleted */
+    void fileDeleted(File file);
+
+    /** The content of a file changed */
+    default void fileModified(File file) {}
+
+    /** Anything inside a directory may have changed, for example when some events were lost */
+    default void directoryChanged(File dir) {}
+}
@@ -0,0 +1,104 @@
+package ftpserver.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Attributes of a file read at a given time
+ **/
+public class FileStat {
+
+    /** Attributes of a file that doesn't exist */
+    public static final FileStat MISSING = new FileStat("-", false, false, 0, 0, false, false, false);
+
+    /** Local file used to read the owner, null if it is already known */
+    private final File file;
+    private final boolean exists;
+    private final boolean directory;
+    private final long size;
+    private final long lastModified;
+    private final boolean readable;
+    private final boolean writable;
+    private final boolean executable;
+
+    /** Read only when needed, it can be slow */
+    private volatile String owner;
+
+    public FileStat(String owner, boolean exists, boolean directory, long size, long lastModified,
+                    boolean readable, boolean writable, boolean executable) {
+        this((File) null, exists, directory, size, lastModified, readable, writable, executable);
+        this.owner = owner;
+    }
+
+    private FileStat(File file, boolean exists, boolean directory, long size, long lastModified,
+                     boolean readable, boolean writable, boolean executable) {
+        this.file = file;
+        this.exists = exists;
+        this.directory = directory;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.readable = readable;
+        this.writable = writable;
+        this.executable = executable;
+    }
+
+    /** Read the attributes of a file of the local file system */
+    public static FileStat of(File file) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+
+            return new FileStat(file, true, attrs.isDirectory(), attrs.size(), attrs.lastModifiedTime().toMillis(),
+                    file.canRead(), file.canWrite(), file.canExecute());
+        } catch (IOException e) {
+            return MISSING;
+        }
+    }
+
+    /** @return The same attributes with another size */
+    FileStat withSize(long size) {
+        FileStat stat = new FileStat(file, exists, directory, size, lastModified, readable, writable, executable);
+        stat.owner = owner;
+        return stat;
+    }
+
+    public boolean exists() {
+        return exists;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public boolean isReadable() {
+        return readable;
+    }
+
+    public boolean isWritable() {
+        return writable;
+    }
+
+    public boolean isExecutable() {
+        return executable;
+    }
+
+    public String getOwner() {
+        if (owner == null && file != null) {
+            try {
+                owner = Files.getOwner(file.toPath()).getName();
+            } catch (IOException | UnsupportedOperationException e) {
+                owner = "-";
+            }
+        }
+        return owner;
+    }
+}
@@ -0,0 +1,117 @@
+package ftpserver.file;
+
+import ftpserver.log.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watch the tree of a {@link FileHandler} for changes made by other programs
+ * and report them to its listeners
+ **/
+public class FileWatcher implements Closeable {
+
+    public static final String TAG = "FileWatcher";
+
+    private final FileHandler fh;
+    private final WatchService watcher;
+
+    /** The directory watched by each key */
+    private final Map<WatchKey, File> keys = new ConcurrentHashMap<>();
+
+    private final WatchThread thread;
+
+    public FileWatcher(FileHandler fh) throws IOException {
+        this.fh = fh;
+        watcher = FileSystems.getDefault().newWatchService();
+
+        thread = new WatchThread();
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Watch a directory and all its subdirectories */
+    private void registerTree(File dir) {
+        try {
+            Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) throws IOException {
+                    keys.put(path.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), path.toFile());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            Log.i(TAG, "Couldn't watch " + dir + ": " + e.getMessage());
+        }
+    }
+
+    private void process(WatchKey key) {
+        File dir = keys.get(key);
+
+        if (dir != null) {
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    fh.fireDirectoryChanged(dir);
+                    continue;
+                }
+
+                File file = new File(dir, event.context().toString());
+
+                if (event.kind() == ENTRY_CREATE) {
+                    fh.fireCreated(file);
+
+                    // The directory may have been filled before it was registered
+                    if (file.isDirectory()) {
+                        registerTree(file);
+                        fh.fireDirectoryChanged(file);
+                    }
+                } else if (event.kind() == ENTRY_DELETE) {
+                    fh.fireDeleted(file);
+                } else if (!file.isDirectory()) {
+                    fh.fireModified(file);
+                }
+            }
+        }
+
+        if (!key.reset()) keys.remove(key);
+    }
+
+    @Override
+    public void close() throws IOException {
+        thread.interrupt();
+        watcher.close();
+    }
+
+    class WatchThread extends Thread {
+
+        WatchThread() {
+            super(TAG);
+        }
+
+        @Override
+        public void run() {
+            registerTree(fh.getRoot());
+            Log.i(TAG, keys.size() + " directories watched");
+
+            while (!isInterrupted()) {
+                try {
+                    process(watcher.take());
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
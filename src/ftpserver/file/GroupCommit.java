@@ -0,0 +1,156 @@
+package ftpserver.file;
+
+import ftpserver.log.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Batch the files that need to be forced to disk
+ *
+ * Every interval the pending files are forced, moved in place if needed,
+ * and their directories are forced once for the whole batch.
+ **/
+public class GroupCommit implements Closeable {
+
+    public static final String TAG = "GroupCommit";
+
+    private final FileHandler fh;
+    private final long interval;
+
+    private final BlockingQueue<Request> pending = new LinkedBlockingQueue<>();
+    private final CommitThread thread;
+
+    /** Set under the lock of the queue, so no request is added once the thread may have left */
+    private volatile boolean isClosed = false;
+
+    /** @param fh Used to force the files
+     *  @param interval Time waited to collect a batch, in milliseconds */
+    public GroupCommit(FileHandler fh, long interval) {
+        this.fh = fh;
+        this.interval = interval;
+
+        thread = new CommitThread();
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Force a file to disk with the next batch, blocks until it is done
+     *
+     * @param file The file to force
+     * @param commit Executed after the file is forced and before its directory is, can be null
+     * @param dir The directory where the file is finally stored */
+    public void commit(File file, Action commit, File dir) throws IOException {
+        Request request = new Request(file, commit, dir);
+
+        synchronized (pending) {
+            if (isClosed) throw new IOException("Server closed");
+            pending.add(request);
+        }
+
+        try {
+            request.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while forcing the file");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void sweep(List<Request> batch) {
+        Set<File> dirs = new LinkedHashSet<>();
+
+        for (Request request : batch) {
+            try {
+                fh.sync(request.file);
+                if (request.commit != null) request.commit.run();
+                dirs.add(request.dir);
+            } catch (IOException e) {
+                request.done.completeExceptionally(e);
+            }
+        }
+
+        for (File dir : dirs)
+            fh.syncDirectory(dir);
+
+        for (Request request : batch)
+            request.done.complete(null);
+    }
+
+    @Override
+    public void close() {
+        synchronized (pending) {
+            isClosed = true;
+        }
+        thread.interrupt();
+    }
+
+    @FunctionalInterface
+    public interface Action {
+        void run() throws IOException;
+    }
+
+    private static class Request {
+        final File file;
+        final Action commit;
+        final File dir;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Request(File file, Action commit, File dir) {
+            this.file = file;
+            this.commit = commit;
+            this.dir = dir;
+        }
+    }
+
+    class CommitThread extends Thread {
+
+        CommitThread() {
+            super(TAG);
+        }
+
+        @Override
+        public void run() {
+            List<Request> batch = new ArrayList<>();
+
+            while (!isClosed || !pending.isEmpty()) {
+                try {
+                    if (!isClosed) {
+                        batch.add(pending.take());
+                        Thread.sleep(interval);
+                    }
+                } catch (InterruptedException ignored) {}
+
+                pending.drainTo(batch);
+                if (batch.isEmpty()) continue;
+
+                // The thread must survive a failed batch, or every later upload would wait forever
+                try {
+                    sweep(batch);
+                    Log.i(TAG, batch.size() + " files forced");
+                } catch (RuntimeException | Error e) {
+                    Log.i(TAG, "Batch failed: " + e);
+                    for (Request request : batch)
+                        request.done.completeExceptionally(new IOException("Couldn't force the file", e));
+                }
+                batch.clear();
+            }
+
+            // Nothing is added once closed, but don't leave a transfer waiting in any case
+            pending.drainTo(batch);
+            for (Request request : batch)
+                request.done.completeExceptionally(new IOException("Server closed"));
+        }
+    }
+}
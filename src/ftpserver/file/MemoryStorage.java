@@ -0,0 +1,320 @@
+package ftpserver.file;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Store the files in memory, the content is kept off-heap in fixed size chunks
+ *
+ * Nothing is persisted: the files are lost when the server stops
+ **/
+public class MemoryStorage implements Storage {
+
+    /** Size of each off-heap chunk */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final String OWNER = "ftp";
+
+    /** Every file and directory by path */
+    private final Map<String, Node> nodes = new ConcurrentHashMap<>();
+
+    /** Maximum number of bytes stored, 0 for no limit */
+    private final long capacity;
+    private final AtomicLong used = new AtomicLong();
+
+    public MemoryStorage() {
+        this(0);
+    }
+
+    /** @param capacity Maximum number of bytes stored, 0 for no limit */
+    public MemoryStorage(long capacity) {
+        this.capacity = capacity;
+        nodes.put("/", new Node(true));
+    }
+
+    @Override
+    public FileStat stat(String path) {
+        Node node = nodes.get(path);
+        if (node == null) return FileStat.MISSING;
+
+        return new FileStat(OWNER, true, node.dir, node.dir ? 0 : node.size(), node.lastModified,
+                true, true, node.dir);
+    }
+
+    @Override
+    public String[] list(String path) {
+        Node node = nodes.get(path);
+        if (node == null || !node.dir) return null;
+
+        return node.children.toArray(new String[0]);
+    }
+
+    @Override
+    public FileChannel openRead(String path) throws FileNotFoundException {
+        Node node = nodes.get(path);
+        if (node == null || node.dir) throw new FileNotFoundException("File not found");
+
+        return new MemoryChannel(node, false);
+    }
+
+    @Override
+    public synchronized FileChannel openWrite(String path, boolean truncate) throws IOException {
+        Node node = nodes.get(path);
+
+        if (node == null) {
+            Node parent = nodes.get(parent(path));
+            if (parent == null || !parent.dir) throw new FileNotFoundException("Directory not found");
+
+            node = new Node(false);
+            nodes.put(path, node);
+            parent.children.add(name(path));
+            parent.lastModified = System.currentTimeMillis();
+        } else if (node.dir) {
+            throw new FileNotFoundException("Not a file");
+        }
+
+        MemoryChannel channel = new MemoryChannel(node, true);
+        if (truncate) channel.truncate(0);
+        return channel;
+    }
+
+    @Override
+    public synchronized void rename(String from, String to) throws IOException {
+        Node node = nodes.get(from);
+        if (node == null) throw new FileNotFoundException("File not found");
+
+        Node parent = nodes.get(parent(to));
+        if (parent == null || !parent.dir) throw new FileNotFoundException("Directory not found");
+
+        if (node.dir && (to + "/").startsWith(from + "/"))
+            throw new IOException("Can't move a directory inside itself");
+
+        Node target = nodes.get(to);
+        if (target != null) {
+            if (target.dir || node.dir) throw new IOException("File already exists");
+            release(target.truncate(0));
+        }
+
+        // Move the content of a directory too
+        if (node.dir) {
+            String prefix = from + "/";
+            List<String> paths = new ArrayList<>();
+            for (String path : nodes.keySet()) {
+                if (path.startsWith(prefix)) paths.add(path);
+            }
+
+            for (String path : paths)
+                nodes.put(to + path.substring(from.length()), nodes.remove(path));
+        }
+
+        nodes.remove(from);
+        nodes.put(to, node);
+
+        Node oldParent = nodes.get(parent(from));
+        oldParent.children.remove(name(from));
+        oldParent.lastModified = System.currentTimeMillis();
+
+        parent.children.add(name(to));
+        parent.lastModified = System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized boolean delete(String path) {
+        Node node = nodes.get(path);
+        if (node == null || path.equals("/")) return false;
+        if (node.dir && !node.children.isEmpty()) return false;
+
+        nodes.remove(path);
+        if (!node.dir) release(node.truncate(0));
+
+        Node parent = nodes.get(parent(path));
+        parent.children.remove(name(path));
+        parent.lastModified = System.currentTimeMillis();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean mkdirs(String path) {
+        if (nodes.containsKey(path)) return false;
+
+        String parentPath = parent(path);
+        Node parent = nodes.get(parentPath);
+
+        if (parent == null) {
+            mkdirs(parentPath);
+            parent = nodes.get(parentPath);
+        }
+
+        if (!parent.dir) return false;
+
+        nodes.put(path, new Node(true));
+        parent.children.add(name(path));
+        parent.lastModified = System.currentTimeMillis();
+        return true;
+    }
+
+    /** @return The number of bytes stored */
+    public long getUsedSpace() {
+        return used.get();
+    }
+
+    private void reserve(long bytes) throws IOException {
+        long current;
+        do {
+            current = used.get();
+            if (capacity > 0 && current + bytes > capacity)
+                throw new IOException("Not enough memory");
+        } while (!used.compareAndSet(current, current + bytes));
+    }
+
+    private void release(long bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    private static String parent(String path) {
+        int i = path.lastIndexOf('/');
+        return i <= 0 ? "/" : path.substring(0, i);
+    }
+
+    private static String name(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private class Node {
+
+        final boolean dir;
+        volatile long lastModified = System.currentTimeMillis();
+
+        /** Names of the files in a directory */
+        final Set<String> children;
+
+        /** Content of a file */
+        private final List<ByteBuffer> chunks = new ArrayList<>();
+        private long size = 0;
+
+        Node(boolean dir) {
+            this.dir = dir;
+            children = dir ? new ConcurrentSkipListSet<>() : null;
+        }
+
+        synchronized long size() {
+            return size;
+        }
+
+        synchronized int read(ByteBuffer dst, long position) {
+            if (position >= size) return -1;
+
+            int total = 0;
+            while (dst.hasRemaining() && position < size) {
+                ByteBuffer chunk = chunks.get((int) (position / CHUNK_SIZE)).duplicate();
+                int offset = (int) (position % CHUNK_SIZE);
+                int length = (int) Math.min(Math.min(CHUNK_SIZE - offset, size - position), dst.remaining());
+
+                chunk.limit(offset + length).position(offset);
+                dst.put(chunk);
+
+                position += length;
+                total += length;
+            }
+            return total;
+        }
+
+        synchronized int write(ByteBuffer src, long position) throws IOException {
+            int total = 0;
+
+            while (src.hasRemaining()) {
+                int index = (int) (position / CHUNK_SIZE);
+
+                while (chunks.size() <= index) {
+                    reserve(CHUNK_SIZE);
+                    chunks.add(ByteBuffer.allocateDirect(CHUNK_SIZE));
+                }
+
+                ByteBuffer chunk = chunks.get(index).duplicate();
+                int offset = (int) (position % CHUNK_SIZE);
+                int length = Math.min(CHUNK_SIZE - offset, src.remaining());
+
+                ByteBuffer part = src.slice();
+                part.limit(length);
+                chunk.position(offset);
+                chunk.put(part);
+                src.position(src.position() + length);
+
+                position += length;
+                total += length;
+            }
+
+            size = Math.max(size, position);
+            lastModified = System.currentTimeMillis();
+            return total;
+        }
+
+        /** @return The number of bytes of memory freed */
+        synchronized long truncate(long newSize) {
+            if (newSize >= size) return 0;
+
+            int keep = (int) ((newSize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            long freed = (long) (chunks.size() - keep) * CHUNK_SIZE;
+
+            while (chunks.size() > keep)
+                chunks.remove(chunks.size() - 1);
+
+            // Data written later past the end must read as zeros
+            if (newSize % CHUNK_SIZE != 0) {
+                ByteBuffer last = chunks.get(keep - 1).duplicate();
+                last.position((int) (newSize % CHUNK_SIZE));
+                while (last.hasRemaining()) last.put((byte) 0);
+            }
+
+            size = newSize;
+            lastModified = System.currentTimeMillis();
+            return freed;
+        }
+    }
+
+    private class MemoryChannel extends StorageChannel {
+
+        private final Node node;
+        private final boolean writable;
+
+        MemoryChannel(Node node, boolean writable) {
+            this.node = node;
+            this.writable = writable;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) {
+            return node.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            if (!writable) throw new NonWritableChannelException();
+            return node.write(src, position);
+        }
+
+        @Override
+        public long size() {
+            return node.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) {
+            if (!writable) throw new NonWritableChannelException();
+
+            release(node.truncate(size));
+            truncated(size);
+            return this;
+        }
+    }
+}
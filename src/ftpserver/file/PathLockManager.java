@@ -0,0 +1,278 @@
+package ftpserver.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Read/write locks of the files, keyed by their normalized path in the storage
+ *
+ * Only the paths in use have a lock, kept in a concurrent map so sessions using
+ * different files never share a monitor. Any number of readers can hold a path,
+ * a writer holds it alone and waiting writers keep new readers out.
+ *
+ * Renaming or deleting locks a whole subtree: its root is locked and the operation
+ * waits for the locks held below it. Meanwhile the other locks also check their
+ * ancestors, otherwise reading a file costs one map update and one uncontended monitor.
+ * The locks aren't owned by a thread, a transfer can be locked by one thread and
+ * released by another. They aren't reentrant.
+ **/
+public class PathLockManager {
+
+    /** Pause between two checks of a subtree */
+    private static final long TREE_POLL_INTERVAL = 10;
+
+    /** Locks of the paths in use, removed when nobody holds or waits for them */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /** Subtrees locked or being locked, the other locks check their ancestors only meanwhile */
+    private final AtomicInteger treeLocks = new AtomicInteger();
+
+    /** How long a lock is waited for in milliseconds, 0 to fail at once */
+    private volatile long waitTime = 0;
+
+    /** @param waitTime How long a lock is waited for before failing, in milliseconds, 0 to fail at once */
+    public void setWaitTime(long waitTime) {
+        this.waitTime = waitTime;
+    }
+
+    public long getWaitTime() {
+        return waitTime;
+    }
+
+    /** @return The number of paths currently locked or waited for */
+    public int size() {
+        return entries.size();
+    }
+
+    /** Share a path with the other readers
+     *
+     * @throws IOException If the path is written, renamed or deleted until the wait time */
+    public PathLock lockRead(String path) throws IOException {
+        return lock(path, false);
+    }
+
+    /** Hold a path alone
+     *
+     * @throws IOException If the path is used until the wait time */
+    public PathLock lockWrite(String path) throws IOException {
+        return lock(path, true);
+    }
+
+    private PathLock lock(String path, boolean write) throws IOException {
+        long deadline = deadline();
+
+        while (true) {
+            Entry entry = acquire(path, write, false, deadline);
+
+            // A subtree lock includes the path, the lock is given up until it is released
+            if (treeLocks.get() == 0 || !isUnderTree(path, null)) return new PathLock(new String[]{path}, write, false);
+
+            release(path, entry, write);
+            if (!pause(deadline)) throw busy(path);
+        }
+    }
+
+    /** Hold whole subtrees alone, to rename or delete them. The paths are locked in order so
+     * two operations on the same paths can't deadlock
+     *
+     * @throws IOException If a path or a file below it is used until the wait time */
+    public PathLock lockTrees(String... paths) throws IOException {
+        String[] sorted = Arrays.stream(paths).distinct().sorted().toArray(String[]::new);
+        long deadline = deadline();
+
+        treeLocks.incrementAndGet();
+        int locked = 0;
+        try {
+            while (true) {
+                for (; locked < sorted.length; locked++)
+                    acquire(sorted[locked], true, true, deadline);
+
+                // Inside another subtree, it goes first
+                String outer = null;
+                for (String path : sorted) {
+                    if (isUnderTree(path, sorted)) outer = path;
+                }
+                if (outer == null) break;
+
+                for (; locked > 0; locked--)
+                    release(sorted[locked - 1], entries.get(sorted[locked - 1]), true);
+                if (!pause(deadline)) throw busy(outer);
+            }
+
+            // The locks below give way to the subtree, or end with their transfer
+            for (String path : sorted) {
+                String used;
+                while ((used = findUsedBelow(path, sorted)) != null) {
+                    if (!pause(deadline)) throw busy(used);
+                }
+            }
+
+            return new PathLock(sorted, true, true);
+        } catch (IOException e) {
+            for (int i = 0; i < locked; i++)
+                release(sorted[i], entries.get(sorted[i]), true);
+            treeLocks.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private long deadline() {
+        return System.currentTimeMillis() + waitTime;
+    }
+
+    private Entry acquire(String path, boolean write, boolean tree, long deadline) throws IOException {
+        Entry entry = entries.compute(path, (key, value) -> {
+            if (value == null) value = new Entry();
+            value.users++;
+            return value;
+        });
+
+        boolean acquired;
+        try {
+            acquired = entry.acquire(write, tree, deadline);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+
+        if (!acquired) {
+            unuse(path);
+            throw busy(path);
+        }
+        return entry;
+    }
+
+    private void release(String path, Entry entry, boolean write) {
+        entry.release(write);
+        unuse(path);
+    }
+
+    private void unuse(String path) {
+        entries.computeIfPresent(path, (key, value) -> --value.users == 0 ? null : value);
+    }
+
+    /** @param own Paths locked by the caller, null if none
+     * @return Whether an ancestor of the path, other than the own ones, has its subtree locked */
+    private boolean isUnderTree(String path, String[] own) {
+        if (path.equals("/")) return false;
+
+        for (int i = path.lastIndexOf('/'); i >= 0; i = path.lastIndexOf('/', i - 1)) {
+            String ancestor = i == 0 ? "/" : path.substring(0, i);
+            Entry entry = entries.get(ancestor);
+
+            if (entry != null && entry.tree && (own == null || Arrays.binarySearch(own, ancestor) < 0)) return true;
+            if (i == 0) break;
+        }
+        return false;
+    }
+
+    /** @param own Paths locked by the caller, sorted
+     * @return A path below dir, other than the own ones, that is locked or waited for, null if none */
+    private String findUsedBelow(String dir, String[] own) {
+        String prefix = dir.equals("/") ? "/" : dir + "/";
+
+        for (String path : entries.keySet()) {
+            if (path.startsWith(prefix) && Arrays.binarySearch(own, path) < 0) return path;
+        }
+        return null;
+    }
+
+    /** Wait before checking a subtree again
+     *
+     * @return Whether the deadline isn't reached */
+    private static boolean pause(long deadline) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) return false;
+
+        try {
+            Thread.sleep(Math.min(remaining, TREE_POLL_INTERVAL));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static IOException busy(String path) {
+        return new IOException("File in use: " + path);
+    }
+
+    /**
+     * Locks held on one or more paths, released once when closed
+     **/
+    public class PathLock implements Closeable {
+
+        private final String[] paths;
+        private final boolean write;
+        private final boolean tree;
+        private boolean released = false;
+
+        private PathLock(String[] paths, boolean write, boolean tree) {
+            this.paths = paths;
+            this.write = write;
+            this.tree = tree;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (released) return;
+            released = true;
+
+            for (String path : paths)
+                release(path, entries.get(path), write);
+
+            if (tree) treeLocks.decrementAndGet();
+        }
+    }
+
+    private static class Entry {
+
+        /** Holders and waiters, guarded by the map */
+        int users;
+
+        /** Guarded by the entry */
+        private int readers;
+        private boolean writer;
+        private int waitingWriters;
+
+        /** Whether the writer holds the whole subtree */
+        volatile boolean tree;
+
+        synchronized boolean acquire(boolean write, boolean tree, long deadline) throws InterruptedException {
+            if (write) waitingWriters++;
+            try {
+                while (write ? writer || readers > 0 : writer || waitingWriters > 0) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) return false;
+                    wait(remaining);
+                }
+
+                if (write) {
+                    writer = true;
+                    this.tree = tree;
+                } else {
+                    readers++;
+                }
+                return true;
+            } finally {
+                // The readers held back by this writer can go if it gave up
+                if (write && --waitingWriters == 0 && !writer) notifyAll();
+            }
+        }
+
+        synchronized void release(boolean write) {
+            if (write) {
+                writer = false;
+                tree = false;
+            } else {
+                readers--;
+            }
+
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package ftpserver.file;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a write would make a directory use more than its quota
+ **/
+public class QuotaExceededException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public QuotaExceededException(String message) {
+        super(message);
+    }
+}
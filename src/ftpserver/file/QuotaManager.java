@@ -0,0 +1,484 @@
+package ftpserver.file;
+
+import ftpserver.log.Log;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Space used by the directories of a {@link FileHandler}, to enforce their quotas
+ *
+ * The size of every file is read once, by a parallel scan or from the snapshot
+ * saved by the previous run, then kept updated with the changes reported to the
+ * listeners, so the usage of a directory never needs a walk of its tree.
+ * Writes reserve the space they add before writing it, a write that would go
+ * over a quota fails with a {@link QuotaExceededException}.
+ *
+ * The files changed while the server was stopped are only seen by {@link #rescan()}.
+ **/
+public class QuotaManager implements FileListener, Closeable {
+
+    public static final String TAG = "QuotaManager";
+
+    private static final int SNAPSHOT_MAGIC = 0x51544131;
+    private static final int STRIPES = 64;
+
+    private final FileHandler fh;
+
+    /** Size of every file, by path in the storage */
+    private final ConcurrentSkipListMap<String, Long> sizes = new ConcurrentSkipListMap<>();
+
+    /** Quotas by the path of their directory */
+    private final Map<String, Quota> quotas = new ConcurrentHashMap<>();
+
+    /** Files being written, their size is counted by the reservation until it is closed */
+    private final Map<String, Reservation> writing = new ConcurrentHashMap<>();
+
+    /** Serialize the updates of the same file */
+    private final Object[] stripes = new Object[STRIPES];
+
+    /** Where the sizes are saved, null if they aren't */
+    private final File snapshot;
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private final PersistThread persistThread;
+
+    /** @param fh The file handler whose files are counted
+     * @param snapshot Where the sizes are saved for the next start, null to scan the tree on every start
+     * @param persistInterval How often the sizes are saved when they changed, in milliseconds */
+    public QuotaManager(FileHandler fh, File snapshot, long persistInterval) {
+        this.fh = fh;
+        this.snapshot = snapshot;
+
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Object();
+
+        if (snapshot != null && persistInterval > 0) {
+            persistThread = new PersistThread(persistInterval);
+            persistThread.setDaemon(true);
+            persistThread.start();
+        } else {
+            persistThread = null;
+        }
+    }
+
+    /** Read the sizes from the snapshot, or scan the tree if there is none */
+    public void build() {
+        if (snapshot != null && snapshot.exists()) {
+            try {
+                load();
+                return;
+            } catch (IOException e) {
+                Log.i(TAG, "Couldn't read " + snapshot + ", scanning: " + e.getMessage());
+            }
+        }
+
+        rescan();
+    }
+
+    /** Scan the whole tree again, the directories are listed in parallel */
+    public void rescan() {
+        long start = System.currentTimeMillis();
+
+        Map<String, Long> scanned = new ConcurrentHashMap<>();
+        ForkJoinPool.commonPool().invoke(new ScanTask(fh.getRoot(), scanned));
+
+        sizes.clear();
+        sizes.putAll(scanned);
+        for (Quota quota : quotas.values())
+            quota.used.set(sum(quota.path));
+        dirty.set(true);
+
+        Log.i(TAG, "Scanned " + scanned.size() + " files in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /** Limit the space used by a directory and everything inside it
+     *
+     * @param dir The directory
+     * @param limit The maximum number of bytes */
+    public void setQuota(File dir, long limit) {
+        String path = fh.toStoragePath(dir);
+        quotas.computeIfAbsent(path, p -> new Quota(p, sum(p))).limit = limit;
+    }
+
+    public void removeQuota(File dir) {
+        quotas.remove(fh.toStoragePath(dir));
+    }
+
+    /** @return The quotas applying to a file, from the closest directory */
+    public List<Quota> getQuotas(File file) {
+        List<Quota> result = new ArrayList<>();
+        for (String dir : ancestors(fh.toStoragePath(file))) {
+            Quota quota = quotas.get(dir);
+            if (quota != null) result.add(quota);
+        }
+        return result;
+    }
+
+    /** @return The number of bytes used by a directory, or by a file */
+    public long getUsage(File file) {
+        String path = fh.toStoragePath(file);
+
+        Quota quota = quotas.get(path);
+        if (quota != null) return quota.getUsed();
+
+        Long size = sizes.get(path);
+        return size != null ? size : sum(path);
+    }
+
+    /** @return The sum of the sizes of the files inside a directory */
+    private long sum(String dir) {
+        Collection<Long> values = dir.equals("/") ? sizes.values() : sizes.subMap(dir + "/", dir + "0").values();
+
+        long sum = 0;
+        for (long size : values) sum += size;
+        return sum;
+    }
+
+    /** @return The directories containing a path, the closest first */
+    private static List<String> ancestors(String path) {
+        List<String> ancestors = new ArrayList<>();
+        if (path.equals("/")) return ancestors;
+
+        for (int i = path.lastIndexOf('/'); i > 0; i = path.lastIndexOf('/', i - 1))
+            ancestors.add(path.substring(0, i));
+        ancestors.add("/");
+        return ancestors;
+    }
+
+    private void addUsed(String path, long delta) {
+        for (String dir : ancestors(path)) {
+            Quota quota = quotas.get(dir);
+            if (quota != null) quota.used.addAndGet(delta);
+        }
+        dirty.set(true);
+    }
+
+    /** Reserve space for bytes about to be written, a negative amount frees space
+     *
+     * @throws QuotaExceededException If a quota of the file doesn't have the space left */
+    private void reserve(String path, long bytes) throws QuotaExceededException {
+        List<Quota> reserved = new ArrayList<>();
+
+        for (String dir : ancestors(path)) {
+            Quota quota = quotas.get(dir);
+            if (quota == null) continue;
+
+            if (!quota.reserve(bytes)) {
+                for (Quota q : reserved) q.reserved.addAndGet(-bytes);
+                throw new QuotaExceededException("Quota of " + dir + " exceeded (" + quota.limit + " bytes)");
+            }
+            reserved.add(quota);
+        }
+    }
+
+    private void release(String path, long bytes) {
+        for (String dir : ancestors(path)) {
+            Quota quota = quotas.get(dir);
+            if (quota != null) quota.reserved.addAndGet(-bytes);
+        }
+    }
+
+    /** Start counting the space added by a write
+     *
+     * @param path The file written
+     * @param start Where the writes start
+     * @param truncate Whether the file is emptied first */
+    Reservation open(String path, long start, boolean truncate) throws QuotaExceededException {
+        return new Reservation(path, start, truncate);
+    }
+
+    /** Read the size of a file again and count the difference */
+    private void update(String path) {
+        // The changes seen by the watcher during a write are already reserved
+        if (writing.containsKey(path)) return;
+
+        long delta;
+
+        synchronized (stripes[(path.hashCode() & 0x7fffffff) % STRIPES]) {
+            FileStat stat = fh.getStorage().stat(path);
+            long size = stat.exists() && !stat.isDirectory() ? stat.getSize() : -1;
+
+            Long old = size >= 0 ? sizes.put(path, size) : sizes.remove(path);
+            delta = Math.max(size, 0) - (old != null ? old : 0);
+        }
+
+        if (delta != 0) addUsed(path, delta);
+    }
+
+    /** Stop counting the files inside a directory */
+    private void removeTree(String dir) {
+        Map<String, Long> removed = dir.equals("/") ? sizes : sizes.subMap(dir + "/", dir + "0");
+
+        for (Map.Entry<String, Long> entry : removed.entrySet()) {
+            if (sizes.remove(entry.getKey(), entry.getValue()))
+                addUsed(entry.getKey(), -entry.getValue());
+        }
+    }
+
+    /** Count the files inside a directory, listed in parallel */
+    private void addTree(File dir) {
+        Map<String, Long> scanned = new ConcurrentHashMap<>();
+        ForkJoinPool.commonPool().invoke(new ScanTask(dir, scanned));
+
+        for (Map.Entry<String, Long> entry : scanned.entrySet()) {
+            Long old = sizes.put(entry.getKey(), entry.getValue());
+            addUsed(entry.getKey(), entry.getValue() - (old != null ? old : 0));
+        }
+    }
+
+    @Override
+    public void fileCreated(File file) {
+        String path = fh.toStoragePath(file);
+        if (FileHandler.isOutside(path)) return;
+
+        // A directory moved into the tree comes with its content
+        if (fh.getStorage().stat(path).isDirectory()) addTree(file);
+        else update(path);
+    }
+
+    @Override
+    public void fileDeleted(File file) {
+        String path = fh.toStoragePath(file);
+        if (FileHandler.isOutside(path)) return;
+
+        update(path);
+        removeTree(path);
+    }
+
+    @Override
+    public void fileModified(File file) {
+        String path = fh.toStoragePath(file);
+        if (!FileHandler.isOutside(path)) update(path);
+    }
+
+    @Override
+    public void directoryChanged(File dir) {
+        String path = fh.toStoragePath(dir);
+        if (FileHandler.isOutside(path)) return;
+
+        removeTree(path);
+        addTree(dir);
+    }
+
+    private void load() throws IOException {
+        Map<String, Long> loaded = new HashMap<>();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot), 64 * 1024))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) throw new IOException("Not a quota snapshot");
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+                loaded.put(in.readUTF(), in.readLong());
+        }
+
+        sizes.clear();
+        sizes.putAll(loaded);
+        for (Quota quota : quotas.values())
+            quota.used.set(sum(quota.path));
+
+        Log.i(TAG, loaded.size() + " file sizes loaded");
+    }
+
+    /** Save the sizes if they changed since the last save, the snapshot is replaced atomically */
+    public void save() throws IOException {
+        if (snapshot == null || !dirty.getAndSet(false)) return;
+
+        File temp = new File(snapshot.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024))) {
+            List<Map.Entry<String, Long>> entries = new ArrayList<>(sizes.entrySet());
+
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Long> entry : entries) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        } catch (IOException e) {
+            dirty.set(true);
+            throw e;
+        }
+
+        Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (persistThread != null) persistThread.interrupt();
+        save();
+    }
+
+    /**
+     * Quota of a directory
+     **/
+    public static class Quota {
+
+        private final String path;
+        private volatile long limit = Long.MAX_VALUE;
+
+        /** Size of the files written */
+        private final AtomicLong used;
+        /** Space taken by the writes in progress, negative when they freed more than they added */
+        private final AtomicLong reserved = new AtomicLong();
+
+        Quota(String path, long used) {
+            this.path = path;
+            this.used = new AtomicLong(used);
+        }
+
+        boolean reserve(long bytes) {
+            while (true) {
+                long current = reserved.get();
+                if (bytes > 0 && used.get() + current + bytes > limit) return false;
+                if (reserved.compareAndSet(current, current + bytes)) return true;
+            }
+        }
+
+        /** @return The path of the directory from the root */
+        public String getPath() {
+            return path;
+        }
+
+        public long getLimit() {
+            return limit;
+        }
+
+        /** @return The number of bytes used by the files, without the writes in progress */
+        public long getUsed() {
+            return used.get();
+        }
+
+        /** @return The number of bytes still available, counting the writes in progress */
+        public long getAvailable() {
+            return Math.max(0, limit - used.get() - Math.max(reserved.get(), 0));
+        }
+    }
+
+    /**
+     * Space added by a write in progress, given back once the new size of the file is counted
+     **/
+    class Reservation implements Closeable {
+
+        private final String path;
+
+        /** Where the next write goes and the end of the data */
+        private long position;
+        private long end;
+        private long reserved = 0;
+
+        Reservation(String path, long start, boolean truncate) throws QuotaExceededException {
+            this.path = path;
+
+            Long size = sizes.get(path);
+            long current = size != null ? size : 0;
+
+            position = truncate ? 0 : start;
+            end = truncate ? 0 : current;
+
+            // The space of the truncated data can be written again
+            if (truncate && current > 0) {
+                reserve(path, -current);
+                reserved = -current;
+            }
+            writing.put(path, this);
+        }
+
+        /** Reserve the space added by the next write */
+        void write(long length) throws QuotaExceededException {
+            long next = position + length;
+
+            if (next > end) {
+                reserve(path, next - end);
+                reserved += next - end;
+                end = next;
+            }
+            position = next;
+        }
+
+        /** Count the new size of the file and give back the reservation */
+        @Override
+        public void close() {
+            if (writing.remove(path, this)) {
+                // The space is added before it is removed, it may be counted twice for a moment
+                // but never missed, or a concurrent write could go past the limit
+                if (reserved > 0) {
+                    update(path);
+                    release(path, reserved);
+                } else {
+                    release(path, reserved);
+                    update(path);
+                }
+            }
+            reserved = 0;
+        }
+    }
+
+    class ScanTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File dir;
+        private final Map<String, Long> sizes;
+
+        ScanTask(File dir, Map<String, Long> sizes) {
+            this.dir = dir;
+            this.sizes = sizes;
+        }
+
+        @Override
+        protected void compute() {
+            File[] files = fh.getListFiles(dir);
+            if (files == null) return;
+
+            List<ScanTask> subdirs = new ArrayList<>();
+
+            for (File file : files) {
+                String path = fh.toStoragePath(file);
+                FileStat stat = fh.getStorage().stat(path);
+
+                if (stat.isDirectory()) {
+                    // A link to an ancestor would be counted forever
+                    if (!fh.isSymbolicLink(file)) subdirs.add(new ScanTask(file, sizes));
+                }
+                else if (stat.exists()) sizes.put(path, stat.getSize());
+            }
+
+            invokeAll(subdirs);
+        }
+    }
+
+    class PersistThread extends Thread {
+
+        private final long interval;
+
+        PersistThread(long interval) {
+            super(TAG);
+            this.interval = interval;
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                try {
+                    save();
+                } catch (IOException e) {
+                    Log.i(TAG, "Couldn't save the sizes: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
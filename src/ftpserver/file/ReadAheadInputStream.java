@@ -0,0 +1,152 @@
+package ftpserver.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Stream read ahead by a thread of its own
+ *
+ * The reader fills a ring of buffers while the data already read is consumed,
+ * so a slow storage and a slow connection work at the same time instead of
+ * taking turns. The reader waits when every buffer is full, the memory used
+ * is bounded by the number of buffers.
+ **/
+public class ReadAheadInputStream extends InputStream {
+
+    public static final String TAG = "ReadAhead";
+
+    /** Filled buffers, in order, ended by {@link #END} */
+    private final BlockingQueue<Chunk> filled;
+    /** Buffers consumed, given back to the reader */
+    private final BlockingQueue<byte[]> free;
+
+    private static final Chunk END = new Chunk(new byte[0], 0);
+
+    private final InputStream in;
+    private final ReaderThread reader;
+
+    /** Error of the reader, thrown once the data before it is consumed */
+    private volatile IOException failure;
+
+    /** Buffer being consumed */
+    private Chunk current;
+    private int position;
+    private volatile boolean closed = false;
+
+    /** @param in The stream read ahead, closed with this one
+     * @param buffers Number of buffers read ahead
+     * @param bufferSize Size of each read */
+    public ReadAheadInputStream(InputStream in, int buffers, int bufferSize) {
+        this.in = in;
+        filled = new ArrayBlockingQueue<>(buffers + 1);
+        free = new ArrayBlockingQueue<>(buffers);
+
+        for (int i = 0; i < buffers; i++)
+            free.add(new byte[bufferSize]);
+
+        reader = new ReaderThread();
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        if (len == 0) return 0;
+
+        if (current == null || position == current.length) {
+            if (current == END) return -1;
+            if (current != null) free.offer(current.data);
+
+            try {
+                current = filled.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            position = 0;
+
+            if (current == END) {
+                if (failure != null) throw failure;
+                return -1;
+            }
+        }
+
+        int length = Math.min(len, current.length - position);
+        System.arraycopy(current.data, position, b, off, length);
+        position += length;
+        return length;
+    }
+
+    @Override
+    public int available() {
+        return current != null ? current.length - position : 0;
+    }
+
+    /** Stop the reader, then close the stream read */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        reader.interrupt();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static class Chunk {
+        final byte[] data;
+        final int length;
+
+        Chunk(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    class ReaderThread extends Thread {
+
+        ReaderThread() {
+            super(TAG);
+        }
+
+        @Override
+        public void run() {
+            try {
+                // The stream read may swallow the interrupt, the flag is checked too
+                while (!closed) {
+                    byte[] buffer = free.take();
+
+                    // Whole buffers, the reads stay large and sequential
+                    int length = 0, read = 0;
+                    while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) != -1)
+                        length += read;
+
+                    if (length > 0) filled.put(new Chunk(buffer, length));
+                    if (read == -1) break;
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (InterruptedException ignored) {
+                // Closed
+            } finally {
+                // There is always room for the end, the buffers are fewer than the queue
+                filled.offer(END);
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package ftpserver.file;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Short lived cache of file attributes, shared by the commands and the listings
+ *
+ * Missing files are cached too. Entries are dropped when the file handler
+ * reports a change, or when they expire.
+ **/
+public class StatCache implements FileListener {
+
+    /** Above this size the cache is emptied, instead of tracking the least used entries */
+    private static final int MAX_ENTRIES = 100000;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /** Read the attributes on a miss */
+    private final Function<File, FileStat> loader;
+
+    /** Normalized path of a file, with '/' as separator */
+    private final Function<File, String> keys;
+
+    /** Time an entry is valid, in milliseconds */
+    private volatile long ttl;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public StatCache(long ttl) {
+        this(ttl, FileStat::of,
+                file -> file.toPath().toAbsolutePath().normalize().toString().replace(File.separatorChar, '/'));
+    }
+
+    /** @param loader Read the attributes of a file that isn't cached
+     * @param keys Give the same key to every name of a file, with '/' as separator */
+    public StatCache(long ttl, Function<File, FileStat> loader, Function<File, String> keys) {
+        this.ttl = ttl;
+        this.loader = loader;
+        this.keys = keys;
+    }
+
+    public FileStat get(File file) {
+        if (ttl <= 0) return loader.apply(file);
+
+        String key = keys.apply(file);
+        long now = System.currentTimeMillis();
+
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expires > now) {
+            hits.incrementAndGet();
+            return entry.stat;
+        }
+
+        misses.incrementAndGet();
+        FileStat stat = loader.apply(file);
+
+        if (entries.size() >= MAX_ENTRIES) entries.clear();
+        entries.put(key, new Entry(stat, now + ttl));
+
+        return stat;
+    }
+
+    public void invalidate(File file) {
+        entries.remove(keys.apply(file));
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+        entries.clear();
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public void fileCreated(File file) {
+        invalidate(file);
+        invalidate(file.getAbsoluteFile().getParentFile());
+    }
+
+    @Override
+    public void fileDeleted(File file) {
+        Entry old = entries.remove(keys.apply(file));
+
+        // A deleted directory takes its content with it
+        if (old == null || old.stat.isDirectory()) removeContent(file);
+
+        invalidate(file.getAbsoluteFile().getParentFile());
+    }
+
+    @Override
+    public void fileModified(File file) {
+        invalidate(file);
+    }
+
+    @Override
+    public void directoryChanged(File dir) {
+        removeContent(dir);
+        invalidate(dir);
+    }
+
+    private void removeContent(File dir) {
+        String key = keys.apply(dir);
+        String prefix = key.endsWith("/") ? key : key + "/";
+        entries.keySet().removeIf(path -> path.startsWith(prefix));
+    }
+
+    private static class Entry {
+        final FileStat stat;
+        final long expires;
+
+        Entry(FileStat stat, long expires) {
+            this.stat = stat;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package ftpserver.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Where the files of a {@link FileHandler} are stored
+ *
+ * Paths are absolute inside the storage, use '/' as separator and are
+ * already normalized and checked by the file handler, "/" is the root.
+ **/
+public interface Storage {
+
+    /** Get the attributes of a file
+     *
+     * @return The attributes, {@link FileStat#MISSING} if the file doesn't exist */
+    FileStat stat(String path);
+
+    /** List the names of the files in a directory
+     *
+     * @return The names, null if the path isn't a directory */
+    String[] list(String path);
+
+    /** Open a file for reading
+     *
+     * @throws java.io.FileNotFoundException If the file doesn't exist or isn't a regular file */
+    FileChannel openRead(String path) throws IOException;
+
+    /** Open a file for writing, it is created if it doesn't exist
+     *
+     * @param path The file
+     * @param truncate Whether the existing content is dropped
+     * @throws java.io.FileNotFoundException If the parent directory doesn't exist or the path is a directory */
+    FileChannel openWrite(String path, boolean truncate) throws IOException;
+
+    /** Move a file or a directory, replacing the target file if it exists.
+     * The move is atomic when the storage supports it */
+    void rename(String from, String to) throws IOException;
+
+    /** Delete a file or an empty directory
+     *
+     * @return Whether the file was deleted */
+    boolean delete(String path);
+
+    /** Create a directory and its missing parents
+     *
+     * @return Whether the directory was created */
+    boolean mkdirs(String path);
+
+    /** Make the entries created or renamed in a directory durable */
+    default void syncDirectory(String path) {}
+
+    /** Get the file of the local file system where a path is stored
+     *
+     * @return The local file, null if the storage doesn't keep files on the local file system */
+    default File toLocalFile(String path) {
+        return null;
+    }
+}
@@ -0,0 +1,154 @@
+package ftpserver.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Base of the channels of the storages that don't keep regular files
+ *
+ * Subclasses implement the positional operations, the channel keeps track
+ * of the position. Memory mapping isn't supported and locks are advisory only.
+ **/
+public abstract class StorageChannel extends FileChannel {
+
+    private static final int TRANSFER_SIZE = 64 * 1024;
+
+    private long position = 0;
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        int read = read(dst, position);
+        if (read > 0) position += read;
+        return read;
+    }
+
+    @Override
+    public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int read = read(dsts[i]);
+            if (read < 0) return total == 0 ? -1 : total;
+            total += read;
+            if (dsts[i].hasRemaining()) break;
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        int written = write(src, position);
+        position += written;
+        return written;
+    }
+
+    @Override
+    public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++)
+            total += write(srcs[i]);
+        return total;
+    }
+
+    @Override
+    public synchronized long position() {
+        return position;
+    }
+
+    @Override
+    public synchronized FileChannel position(long newPosition) {
+        if (newPosition < 0) throw new IllegalArgumentException("Negative position");
+        position = newPosition;
+        return this;
+    }
+
+    /** Move the position back when the file is truncated before it */
+    protected synchronized void truncated(long size) {
+        if (position > size) position = size;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        // Nothing is buffered by the channel
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(TRANSFER_SIZE, Math.max(count, 1)));
+        long transferred = 0;
+
+        while (transferred < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+
+            int read = read(buffer, position + transferred);
+            if (read <= 0) break;
+
+            buffer.flip();
+            while (buffer.hasRemaining())
+                target.write(buffer);
+            transferred += read;
+        }
+        return transferred;
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(TRANSFER_SIZE, Math.max(count, 1)));
+        long transferred = 0;
+
+        while (transferred < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+
+            int read = src.read(buffer);
+            if (read <= 0) break;
+
+            buffer.flip();
+            while (buffer.hasRemaining())
+                transferred += write(buffer, position + transferred);
+        }
+        return transferred;
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) {
+        throw new UnsupportedOperationException("Memory mapping not supported");
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) {
+        return new StorageLock(this, position, size, shared);
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) {
+        return new StorageLock(this, position, size, shared);
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {}
+
+    private static class StorageLock extends FileLock {
+
+        private boolean valid = true;
+
+        StorageLock(FileChannel channel, long position, long size, boolean shared) {
+            super(channel, position, size, shared);
+        }
+
+        @Override
+        public synchronized boolean isValid() {
+            return valid && channel().isOpen();
+        }
+
+        @Override
+        public synchronized void release() {
+            valid = false;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package ftpserver.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recursive listing of a directory tree
+ *
+ * Directories are listed in parallel on the fork-join pool, while the
+ * output is written in the same order as "ls -lR"
+ **/
+public class TreeLister {
+
+    private final FileHandler fh;
+    private final int maxDepth;
+    private final int maxEntries;
+
+    /** Entries that can still be listed */
+    private final AtomicInteger remaining;
+    private volatile boolean truncated = false;
+
+    /** @param fh The file handler used to list and format the files
+     *  @param maxDepth Maximum number of directory levels listed below the first one
+     *  @param maxEntries Maximum number of entries listed */
+    public TreeLister(FileHandler fh, int maxDepth, int maxEntries) {
+        this.fh = fh;
+        this.maxDepth = maxDepth;
+        this.maxEntries = maxEntries;
+        remaining = new AtomicInteger(maxEntries);
+    }
+
+    /** List a directory tree
+     *
+     * @param dir The directory at the top of the tree
+     * @param out Where the listing is written */
+    public void list(File dir, OutputStream out) throws IOException {
+        DirectoryTask root = new DirectoryTask(dir, ".", 0);
+        ForkJoinPool.commonPool().execute(root);
+
+        try {
+            write(root, out);
+        } finally {
+            cancel(root);
+        }
+    }
+
+    /** Check whether the last listing stopped because of the entries limit */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /** @return The number of entries listed by the last listing */
+    public int getEntries() {
+        return Math.min(maxEntries, maxEntries - remaining.get());
+    }
+
+    private void write(DirectoryTask task, OutputStream out) throws IOException {
+        task.join();
+
+        out.write(task.block);
+        task.block = null;
+
+        for (DirectoryTask child : task.children)
+            write(child, out);
+    }
+
+    private void cancel(DirectoryTask task) {
+        task.cancel(false);
+
+        if (task.children != null) {
+            for (DirectoryTask child : task.children)
+                cancel(child);
+        }
+    }
+
+    class DirectoryTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File dir;
+        private final String path;
+        private final int depth;
+
+        /** Formatted listing of the directory */
+        byte[] block;
+        volatile List<DirectoryTask> children;
+
+        DirectoryTask(File dir, String path, int depth) {
+            this.dir = dir;
+            this.path = path;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            File[] files = fh.getListFiles(dir);
+            if (files == null) files = new File[0];
+
+            Arrays.sort(files, Comparator.comparing(File::getName));
+
+            // Reserve the entries before formatting them, the listing stops when no entry is left
+            int count = files.length;
+            int available = remaining.getAndAdd(-count);
+            if (available < count) {
+                count = Math.max(available, 0);
+                truncated = true;
+            }
+
+            StringBuilder builder = new StringBuilder();
+            if (depth > 0) builder.append("\r\n");
+            builder.append(path).append(":\r\n");
+
+            List<DirectoryTask> subdirs = new ArrayList<>();
+
+            for (int i = 0; i < count; i++) {
+                File file = files[i];
+                builder.append(fh.getFormat(file));
+
+                if (depth < maxDepth && fh.isDirectory(file) && !fh.isSymbolicLink(file))
+                    subdirs.add(new DirectoryTask(file, path + "/" + fh.getName(file), depth + 1));
+            }
+
+            block = builder.toString().getBytes(StandardCharsets.UTF_8);
+            children = subdirs;
+
+            for (DirectoryTask child : subdirs)
+                child.fork();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package ftpserver.log;
+
+import jdk.jfr.*;
+
+/**
+ * Flight recorder event of a control connection accepted by the server,
+ * its duration is the time taken to set up the session
+ **/
+@Name("ftpserver.Accept")
+@Label("Accept")
+@Category("FTP Server")
+@Description("A control connection accepted and its session created")
+@StackTrace(false)
+public class AcceptEvent extends Event {
+
+    @Label("Remote Address")
+    private String remoteAddress;
+
+    @Label("Local Port")
+    private int localPort;
+
+    /** Record the event if it is enabled and lasted longer than its threshold
+     *
+     * @param remoteAddress The address of the client
+     * @param localPort The port the connection was accepted on */
+    public void finish(String remoteAddress, int localPort) {
+        end();
+        if (!shouldCommit()) return;
+
+        this.remoteAddress = remoteAddress;
+        this.localPort = localPort;
+        commit();
+    }
+}
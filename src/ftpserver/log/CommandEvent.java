@@ -0,0 +1,36 @@
+package ftpserver.log;
+
+import jdk.jfr.*;
+
+/**
+ * Flight recorder event of a command run by a control connection
+ *
+ * The arguments are not recorded, they may contain a password.
+ **/
+@Name("ftpserver.Command")
+@Label("Command")
+@Category("FTP Server")
+@Description("A command received on a control connection")
+@StackTrace(false)
+public class CommandEvent extends Event {
+
+    @Label("Command")
+    private String command;
+
+    @Label("Reply Code")
+    @Description("Last reply sent by the command, 0 if it replied from another thread")
+    private int replyCode;
+
+    /** Record the event if it is enabled and lasted longer than its threshold
+     *
+     * @param command The command, like "RETR" or "SITE CHMOD"
+     * @param replyCode The last reply code sent */
+    public void finish(String command, int replyCode) {
+        end();
+        if (!shouldCommit()) return;
+
+        this.command = command;
+        this.replyCode = replyCode;
+        commit();
+    }
+}
@@ -0,0 +1,136 @@
+package ftpserver.log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keys with the largest totals among a stream of (key, amount) pairs, in fixed memory
+ *
+ * The totals are estimated by a count-min sketch: each key adds its amount to one
+ * counter per row, the smallest of its counters is never below its real total and
+ * rarely far above it. Only the keys whose estimate enters the top are remembered,
+ * so the memory doesn't grow with the number of distinct keys.
+ **/
+public class HeavyHitters {
+
+    private final int depth;
+    private final int mask;
+    private final AtomicLongArray counters;
+
+    /** Number of keys kept */
+    private final int capacity;
+
+    /** Estimated totals of the top keys, guarded by this */
+    private final Map<String, Long> top = new HashMap<>();
+
+    /** Estimate needed to enter the top, 0 until it is full */
+    private volatile long threshold = 0;
+
+    private final LongAdder total = new LongAdder();
+
+    /** @param capacity Number of top keys kept
+     * @param depth Number of rows of counters, each one lowers the chance of a bad estimate
+     * @param width Number of counters per row, rounded up to a power of 2, more counters give closer estimates */
+    public HeavyHitters(int capacity, int depth, int width) {
+        this.capacity = capacity;
+        this.depth = depth;
+
+        int size = Integer.highestOneBit(Math.max(width - 1, 1)) << 1;
+        mask = size - 1;
+        counters = new AtomicLongArray(depth * size);
+    }
+
+    public void add(String key, long amount) {
+        if (amount <= 0) return;
+        total.add(amount);
+
+        // Two hashes give every row its own position
+        int hash1 = mix(key.hashCode());
+        int hash2 = mix(hash1 ^ 0x9e3779b9) | 1;
+
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int index = row * (mask + 1) + ((hash1 + row * hash2) & mask);
+            estimate = Math.min(estimate, counters.addAndGet(index, amount));
+        }
+
+        if (estimate > threshold) offer(key, estimate);
+    }
+
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        return hash ^ (hash >>> 16);
+    }
+
+    private synchronized void offer(String key, long estimate) {
+        top.put(key, estimate);
+
+        if (top.size() > capacity) top.remove(smallest().getKey());
+        threshold = top.size() < capacity ? 0 : smallest().getValue();
+    }
+
+    private Map.Entry<String, Long> smallest() {
+        Map.Entry<String, Long> smallest = null;
+        for (Map.Entry<String, Long> entry : top.entrySet()) {
+            if (smallest == null || entry.getValue() < smallest.getValue()) smallest = entry;
+        }
+        return smallest;
+    }
+
+    /** @return The keys with the largest estimated totals, the largest first */
+    public synchronized List<Entry> getTop(int limit) {
+        List<Entry> entries = new ArrayList<>(top.size());
+        for (Map.Entry<String, Long> entry : top.entrySet())
+            entries.add(new Entry(entry.getKey(), entry.getValue()));
+
+        entries.sort((a, b) -> Long.compare(b.count, a.count));
+        return entries.size() > limit ? new ArrayList<>(entries.subList(0, limit)) : entries;
+    }
+
+    /** @return The sum of every amount added */
+    public long getTotal() {
+        return total.sum();
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < counters.length(); i++)
+            counters.set(i, 0);
+        top.clear();
+        threshold = 0;
+        total.reset();
+    }
+
+    /**
+     * A key of the top and its estimated total
+     **/
+    public static class Entry {
+
+        private final String key;
+        private final long count;
+
+        Entry(String key, long count) {
+            this.key = key;
+            this.count = count;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return count + " " + key;
+        }
+    }
+}
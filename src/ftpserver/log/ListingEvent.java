@@ -0,0 +1,43 @@
+package ftpserver.log;
+
+import jdk.jfr.*;
+
+/**
+ * Flight recorder event of a directory listing built for a client
+ **/
+@Name("ftpserver.Listing")
+@Label("Listing")
+@Category("FTP Server")
+@Description("A directory listing built by LIST, NLST or MLSD")
+@StackTrace(false)
+public class ListingEvent extends Event {
+
+    @Label("Command")
+    private String command;
+
+    @Label("Path")
+    private String path;
+
+    @Label("Entries")
+    private int entries;
+
+    @Label("Recursive")
+    private boolean recursive;
+
+    /** Record the event if it is enabled and lasted longer than its threshold
+     *
+     * @param command The command listing the directory
+     * @param path The directory, relative to the root
+     * @param entries The number of entries listed
+     * @param recursive Whether the subdirectories were listed */
+    public void finish(String command, String path, int entries, boolean recursive) {
+        end();
+        if (!shouldCommit()) return;
+
+        this.command = command;
+        this.path = path;
+        this.entries = entries;
+        this.recursive = recursive;
+        commit();
+    }
+}
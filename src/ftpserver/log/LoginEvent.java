@@ -0,0 +1,33 @@
+package ftpserver.log;
+
+import jdk.jfr.*;
+
+/**
+ * Flight recorder event of a login, its duration includes verifying the password
+ **/
+@Name("ftpserver.Login")
+@Label("Login")
+@Category("FTP Server")
+@Description("A user logging in on a control connection")
+@StackTrace(false)
+public class LoginEvent extends Event {
+
+    @Label("Username")
+    private String username;
+
+    @Label("Success")
+    private boolean success;
+
+    /** Record the event if it is enabled and lasted longer than its threshold
+     *
+     * @param username The user logging in
+     * @param success Whether the login succeeded */
+    public void finish(String username, boolean success) {
+        end();
+        if (!shouldCommit()) return;
+
+        this.username = username;
+        this.success = success;
+        commit();
+    }
+}
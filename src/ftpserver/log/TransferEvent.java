@@ -0,0 +1,61 @@
+package ftpserver.log;
+
+import jdk.jfr.*;
+
+/**
+ * Flight recorder event of a transfer on a data connection
+ **/
+@Name("ftpserver.Transfer")
+@Label("Transfer")
+@Category("FTP Server")
+@Description("Data sent or received on a data connection")
+@StackTrace(false)
+public class TransferEvent extends Event {
+
+    @Label("Direction")
+    private String direction;
+
+    @Label("Type")
+    @Description("ASCII when the line endings are translated, otherwise Binary")
+    private String type;
+
+    @Label("Passive")
+    private boolean passive;
+
+    @Label("Bytes")
+    @DataAmount
+    private long bytes;
+
+    @Label("Throughput")
+    @DataAmount
+    @Frequency
+    private long throughput;
+
+    @Label("Aborted")
+    private boolean aborted;
+
+    /** Start of the transfer, to compute the throughput, not recorded */
+    private transient final long beginTime = System.nanoTime();
+
+    /** Record the event if it is enabled and lasted longer than its threshold
+     *
+     * @param sent Whether the data was sent to the client, otherwise it was received
+     * @param ascii Whether the line endings were translated
+     * @param passive Whether the client opened the data connection
+     * @param bytes The number of bytes transferred
+     * @param aborted Whether the transfer didn't complete */
+    public void finish(boolean sent, boolean ascii, boolean passive, long bytes, boolean aborted) {
+        end();
+        if (!shouldCommit()) return;
+
+        long time = System.nanoTime() - beginTime;
+
+        direction = sent ? "Send" : "Receive";
+        type = ascii ? "ASCII" : "Binary";
+        this.passive = passive;
+        this.bytes = bytes;
+        throughput = time > 0 ? (long) (bytes * 1e9 / time) : 0;
+        this.aborted = aborted;
+        commit();
+    }
+}
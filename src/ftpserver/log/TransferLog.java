@@ -0,0 +1,284 @@
+package ftpserver.log;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Audit log of the transfers, in the xferlog format of wu-ftpd or as JSON lines
+ *
+ * The transfers are queued and written by a background thread, which appends
+ * everything queued meanwhile in a single write. A transfer is never blocked by
+ * the log: when the queue is full the record is dropped and counted. The file is
+ * rotated when it reaches a size or an age, the rotated files can be compressed.
+ **/
+public class TransferLog implements Closeable {
+
+    public static final String TAG = "TransferLog";
+
+    public enum Format {
+        /** One line per transfer, as written by wu-ftpd */
+        XFERLOG,
+        /** One JSON object per line */
+        JSON
+    }
+
+    private static final int MAX_BATCH = 4096;
+
+    private static final DateTimeFormatter XFERLOG_TIME = DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.US);
+    private static final DateTimeFormatter ROTATION_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private final File file;
+    private final Format format;
+    private final ZoneId zone = ZoneId.systemDefault();
+
+    private final BlockingQueue<TransferRecord> queue;
+    private final AtomicLong dropped = new AtomicLong();
+
+    /** Size and age in milliseconds after which the file is rotated, 0 to never rotate */
+    private volatile long maxSize = 0;
+    private volatile long maxAge = 0;
+    private volatile boolean compress = false;
+
+    /** Current file, only used by the writer thread */
+    private OutputStream out;
+    private long size;
+    private long openedAt;
+
+    private final WriterThread writer;
+
+    /** @param file The file where the transfers are appended
+     * @param format The format of the lines */
+    public TransferLog(File file, Format format) {
+        this(file, format, 65536);
+    }
+
+    /** @param file The file where the transfers are appended
+     * @param format The format of the lines
+     * @param capacity Maximum number of transfers waiting to be written, the others are dropped */
+    public TransferLog(File file, Format format, int capacity) {
+        this.file = file;
+        this.format = format;
+        queue = new ArrayBlockingQueue<>(capacity);
+
+        writer = new WriterThread();
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** @param maxSize Size in bytes after which the file is rotated, 0 for no limit
+     * @param maxAge Age in milliseconds after which the file is rotated, 0 for no limit */
+    public void setRotation(long maxSize, long maxAge) {
+        this.maxSize = maxSize;
+        this.maxAge = maxAge;
+    }
+
+    /** @param compress Whether the rotated files are compressed with gzip */
+    public void setCompression(boolean compress) {
+        this.compress = compress;
+    }
+
+    /** @return The number of transfers that couldn't be logged */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /** Queue a transfer to be written, it is dropped if the queue is full
+     *
+     * @return Whether the transfer was queued */
+    public boolean record(TransferRecord record) {
+        if (queue.offer(record)) return true;
+
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    private void format(TransferRecord record, StringBuilder builder) {
+        if (format == Format.JSON) {
+            builder.append("{\"time\":\"").append(Instant.ofEpochMilli(record.time)).append('"')
+                    .append(",\"duration\":").append(record.duration)
+                    .append(",\"remoteHost\":");
+            appendJson(builder, record.remoteHost);
+            builder.append(",\"bytes\":").append(record.bytes).append(",\"path\":");
+            appendJson(builder, record.path);
+            builder.append(",\"type\":\"").append(record.ascii ? "ascii" : "binary").append('"')
+                    .append(",\"direction\":\"").append(record.sent ? "outgoing" : "incoming").append('"')
+                    .append(",\"username\":");
+            appendJson(builder, record.username);
+            builder.append(",\"completed\":").append(record.completed).append("}\n");
+            return;
+        }
+
+        // current-time transfer-time remote-host file-size filename transfer-type special-action-flag
+        // direction access-mode username service-name authentication-method authenticated-user-id completion-status
+        builder.append(Instant.ofEpochMilli(record.time).atZone(zone).format(XFERLOG_TIME))
+                .append(' ').append((record.duration + 999) / 1000)
+                .append(' ').append(record.remoteHost)
+                .append(' ').append(record.bytes)
+                .append(' ').append(record.path.replaceAll("\\s", "_"))
+                .append(' ').append(record.ascii ? 'a' : 'b')
+                .append(" _ ").append(record.sent ? 'o' : 'i')
+                .append(' ').append(record.username != null ? 'r' : 'a')
+                .append(' ').append(record.username != null ? record.username : "anonymous")
+                .append(" ftp 0 * ").append(record.completed ? 'c' : 'i')
+                .append('\n');
+    }
+
+    private static void appendJson(StringBuilder builder, String value) {
+        if (value == null) {
+            builder.append("null");
+            return;
+        }
+
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') builder.append('\\').append(c);
+            else if (c < 0x20) builder.append(String.format("\\u%04x", (int) c));
+            else builder.append(c);
+        }
+        builder.append('"');
+    }
+
+    /** Append a batch of transfers in a single write */
+    private void write(List<TransferRecord> batch, StringBuilder builder) {
+        builder.setLength(0);
+        for (TransferRecord record : batch)
+            format(record, builder);
+
+        byte[] data = builder.toString().getBytes(StandardCharsets.UTF_8);
+
+        try {
+            if (maxSize > 0 && size > 0 && size + data.length > maxSize) rotate();
+            if (out == null) open();
+
+            out.write(data);
+            size += data.length;
+        } catch (IOException e) {
+            Log.i(TAG, "Couldn't write " + batch.size() + " transfers: " + e.getMessage());
+            dropped.addAndGet(batch.size());
+            closeFile();
+        }
+    }
+
+    private void open() throws IOException {
+        out = new FileOutputStream(file, true);
+        size = file.length();
+        openedAt = System.currentTimeMillis();
+    }
+
+    private void closeFile() {
+        if (out == null) return;
+
+        try {
+            out.close();
+        } catch (IOException ignored) {}
+        out = null;
+    }
+
+    /** Rename the current file with the time of the rotation, the next transfers start a new one */
+    private void rotate() throws IOException {
+        closeFile();
+        size = 0;
+
+        if (!file.exists()) return;
+
+        String name = file.getName() + "." + Instant.now().atZone(zone).format(ROTATION_TIME);
+        File rotated = new File(file.getAbsoluteFile().getParentFile(), name);
+        for (int i = 1; rotated.exists() || new File(rotated.getPath() + ".gz").exists(); i++)
+            rotated = new File(file.getAbsoluteFile().getParentFile(), name + "-" + i);
+
+        Files.move(file.toPath(), rotated.toPath());
+        Log.i(TAG, "Rotated to " + rotated.getName());
+
+        if (compress) {
+            File source = rotated;
+            ForkJoinPool.commonPool().execute(() -> compress(source));
+        }
+    }
+
+    private static void compress(File source) {
+        File target = new File(source.getPath() + ".gz");
+
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(target), 64 * 1024)) {
+            Files.copy(source.toPath(), out);
+        } catch (IOException e) {
+            Log.i(TAG, "Couldn't compress " + source.getName() + ": " + e.getMessage());
+            target.delete();
+            return;
+        }
+
+        source.delete();
+    }
+
+    /** Write the transfers still queued and stop the writer */
+    @Override
+    public void close() {
+        writer.interrupt();
+
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    class WriterThread extends Thread {
+
+        WriterThread() {
+            super(TAG);
+        }
+
+        @Override
+        public void run() {
+            List<TransferRecord> batch = new ArrayList<>();
+            StringBuilder builder = new StringBuilder();
+            long reportedDrops = 0;
+            boolean running = true;
+
+            while (running) {
+                try {
+                    TransferRecord record = queue.poll(1, TimeUnit.SECONDS);
+                    if (record != null) batch.add(record);
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+
+                // Everything queued meanwhile goes in the same write, all of it when closing
+                do {
+                    queue.drainTo(batch, MAX_BATCH - batch.size());
+                    if (!batch.isEmpty()) write(batch, builder);
+                    batch.clear();
+                } while (!running && !queue.isEmpty());
+
+                if (maxAge > 0 && size > 0 && System.currentTimeMillis() - openedAt >= maxAge) {
+                    try {
+                        rotate();
+                    } catch (IOException e) {
+                        Log.i(TAG, "Couldn't rotate: " + e.getMessage());
+                    }
+                }
+
+                long drops = dropped.get();
+                if (drops != reportedDrops) {
+                    Log.i(TAG, (drops - reportedDrops) + " transfers not logged");
+                    reportedDrops = drops;
+                }
+            }
+
+            closeFile();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package ftpserver.log;
+
+/**
+ * A transfer written to the transfer log
+ **/
+public class TransferRecord {
+
+    /** When the transfer ended, in milliseconds since the epoch */
+    final long time;
+    /** Duration of the transfer in milliseconds */
+    final long duration;
+    final String remoteHost;
+    final long bytes;
+    final String path;
+    final boolean ascii;
+    /** Whether the file was sent to the client, otherwise it was received */
+    final boolean sent;
+    /** The user logged in, null if anonymous */
+    final String username;
+    final boolean completed;
+
+    /** @param start When the transfer started, in milliseconds since the epoch
+     * @param remoteHost The address of the client
+     * @param bytes The number of bytes transferred
+     * @param path The path of the file from the root
+     * @param ascii Whether the line endings were translated
+     * @param sent Whether the file was sent to the client, otherwise it was received
+     * @param username The user logged in, null if anonymous
+     * @param completed Whether the whole file was transferred */
+    public TransferRecord(long start, String remoteHost, long bytes, String path, boolean ascii,
+                          boolean sent, String username, boolean completed) {
+        time = System.currentTimeMillis();
+        duration = time - start;
+        this.remoteHost = remoteHost;
+        this.bytes = bytes;
+        this.path = path;
+        this.ascii = ascii;
+        this.sent = sent;
+        this.username = username;
+        this.completed = completed;
+    }
+}
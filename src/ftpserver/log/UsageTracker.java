@@ -0,0 +1,132 @@
+package ftpserver.log;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Files, directories and clients driving the load of a server
+ *
+ * Every transfer and listing is counted in fixed memory, only the top of
+ * each kind is kept. The top can be read with SITE TOP or through JMX.
+ **/
+public class UsageTracker implements UsageTrackerMBean {
+
+    public static final String TAG = "UsageTracker";
+
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 4096;
+
+    /** Bytes sent by file */
+    private final HeavyHitters files;
+    /** Listings by directory */
+    private final HeavyHitters directories;
+    /** Bytes sent and received by client address */
+    private final HeavyHitters clients;
+
+    private ObjectName name;
+
+    public UsageTracker() {
+        this(32);
+    }
+
+    /** @param capacity Number of files, directories and clients kept in each top */
+    public UsageTracker(int capacity) {
+        files = new HeavyHitters(capacity, DEPTH, WIDTH);
+        directories = new HeavyHitters(capacity, DEPTH, WIDTH);
+        clients = new HeavyHitters(capacity, DEPTH, WIDTH);
+    }
+
+    /** @param path The path of the file from the root
+     * @param bytes The number of bytes sent */
+    public void fileSent(String path, long bytes) {
+        files.add(path, bytes);
+    }
+
+    /** @param path The path of the directory from the root */
+    public void listed(String path) {
+        directories.add(path, 1);
+    }
+
+    /** @param address The address of the client
+     * @param bytes The number of bytes sent or received */
+    public void clientTransferred(String address, long bytes) {
+        clients.add(address, bytes);
+    }
+
+    public HeavyHitters getFiles() {
+        return files;
+    }
+
+    public HeavyHitters getDirectories() {
+        return directories;
+    }
+
+    public HeavyHitters getClients() {
+        return clients;
+    }
+
+    /** Make the top readable through JMX
+     *
+     * @param name The name of the MBean, like "ftpserver:type=UsageTracker,port=21" */
+    public synchronized void register(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(name);
+            server.registerMBean(this, objectName);
+            this.name = objectName;
+        } catch (JMException e) {
+            Log.i(TAG, "Couldn't register " + name + ": " + e.getMessage());
+        }
+    }
+
+    public synchronized void unregister() {
+        if (name == null) return;
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException ignored) {}
+        name = null;
+    }
+
+    private static String[] format(List<HeavyHitters.Entry> entries) {
+        String[] lines = new String[entries.size()];
+        for (int i = 0; i < lines.length; i++)
+            lines[i] = entries.get(i).toString();
+        return lines;
+    }
+
+    @Override
+    public String[] getTopFiles() {
+        return format(files.getTop(Integer.MAX_VALUE));
+    }
+
+    @Override
+    public String[] getTopDirectories() {
+        return format(directories.getTop(Integer.MAX_VALUE));
+    }
+
+    @Override
+    public String[] getTopClients() {
+        return format(clients.getTop(Integer.MAX_VALUE));
+    }
+
+    @Override
+    public long getBytesSent() {
+        return files.getTotal();
+    }
+
+    @Override
+    public long getListings() {
+        return directories.getTotal();
+    }
+
+    @Override
+    public void reset() {
+        files.clear();
+        directories.clear();
+        clients.clear();
+    }
+}
@@ -0,0 +1,23 @@
+package ftpserver.log;
+
+/**
+ * Heavy hitters of a server, as seen from JMX
+ **/
+public interface UsageTrackerMBean {
+
+    /** @return The files sent the most, as "bytes path" */
+    String[] getTopFiles();
+
+    /** @return The directories listed the most, as "listings path" */
+    String[] getTopDirectories();
+
+    /** @return The clients transferring the most, as "bytes address" */
+    String[] getTopClients();
+
+    long getBytesSent();
+
+    long getListings();
+
+    /** Start counting again */
+    void reset();
+}
@@ -0,0 +1,59 @@
+package ftpserver.proxy;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A server the router sends sessions to
+ **/
+public class Backend {
+
+    private final String host;
+    private final int port;
+
+    /** Whether the last health check succeeded */
+    private volatile boolean healthy = true;
+
+    /** Sessions currently relayed to the server */
+    private final AtomicInteger sessions = new AtomicInteger();
+
+    /** @param host The address of the server, the data connections are sent to it too
+     * @param port The control port of the server */
+    public Backend(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /** @return The name of the server, used to place it on the hash ring */
+    public String getName() {
+        return host + ":" + port;
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    void setHealthy(boolean healthy) {
+        this.healthy = healthy;
+    }
+
+    public int getSessions() {
+        return sessions.get();
+    }
+
+    AtomicInteger sessionCounter() {
+        return sessions;
+    }
+
+    @Override
+    public String toString() {
+        return getName() + (healthy ? "" : " (down)") + ", " + sessions.get() + " sessions";
+    }
+}
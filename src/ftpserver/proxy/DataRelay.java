@@ -0,0 +1,119 @@
+package ftpserver.proxy;
+
+import ftpserver.log.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * Relay one data connection from the client to a passive port of a backend,
+ * used when the client can't reach the backend itself
+ **/
+class DataRelay extends Thread {
+
+    public static final String TAG = "DataRelay";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ServerSocket server;
+    private final InetAddress peer;
+    private final String host;
+    private final int port;
+    private final int timeout;
+
+    /** @param address The address the client connects to
+     * @param peer The address of the client, the connections from other hosts are refused
+     * @param host The backend address
+     * @param port The passive port opened by the backend
+     * @param timeout Time allowed to the client to connect, in milliseconds */
+    DataRelay(InetAddress address, InetAddress peer, String host, int port, int timeout) throws IOException {
+        super(TAG);
+        this.peer = peer;
+        this.host = host;
+        this.port = port;
+        this.timeout = timeout;
+
+        server = new ServerSocket();
+        server.bind(new InetSocketAddress(address, 0), 1);
+        setDaemon(true);
+    }
+
+    /** @return The port the client connects to */
+    int getLocalPort() {
+        return server.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        Socket accepted;
+        try {
+            accepted = accept();
+        } catch (IOException e) {
+            Log.i(TAG, "No data connection for " + host + ":" + port + ": " + e.getMessage());
+            return;
+        } finally {
+            try {
+                server.close();
+            } catch (IOException ignored) {}
+        }
+
+        try (Socket client = accepted;
+             Socket backend = new Socket(host, port)) {
+
+            // Uploads go to the backend on another thread, downloads come back on this one
+            Thread upload = new Thread(() -> pipe(client, backend), TAG);
+            upload.setDaemon(true);
+            upload.start();
+
+            pipe(backend, client);
+            upload.join();
+        } catch (IOException e) {
+            Log.i(TAG, "Data connection to " + host + ":" + port + " failed: " + e.getMessage());
+        } catch (InterruptedException ignored) {}
+    }
+
+    /** Accept the connection of the client, the backend only sees the relay so the peer is checked here */
+    private Socket accept() throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (true) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) throw new SocketTimeoutException("Accept timed out");
+
+            server.setSoTimeout((int) remaining);
+            Socket socket = server.accept();
+            if (socket.getInetAddress().equals(peer)) return socket;
+
+            Log.i(TAG, "Refused data connection from " + socket.getInetAddress().getHostAddress());
+            socket.close();
+        }
+    }
+
+    /** Copy the data of a socket to another, then end the output of the other one */
+    private static void pipe(Socket from, Socket to) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        try {
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+
+            int length;
+            while ((length = in.read(buffer)) != -1)
+                out.write(buffer, 0, length);
+
+            to.shutdownOutput();
+        } catch (IOException e) {
+            // One side closed, the other one is closed with it
+            try {
+                from.close();
+                to.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package ftpserver.proxy;
+
+import ftpserver.log.Log;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Front end spreading the sessions over several FTP servers
+ *
+ * The control connections are accepted by the router, which reads USER and
+ * relays the session to the server of the user on a consistent hash ring, so a
+ * user always reaches the same server while it is up. The servers are checked
+ * regularly, the users of a server that is down go to the next one on the ring.
+ * The passive replies are rewritten to send the data connections to the server,
+ * or to the router when it relays the data too.
+ **/
+public class FTPRouter implements Closeable {
+
+    public static final String TAG = "FTPRouter";
+
+    private final int port;
+    private ServerSocket server;
+
+    private final HashRing ring;
+    private final List<Backend> backends = new CopyOnWriteArrayList<>();
+
+    /** Relay the data connections through the router, for clients that can't reach the servers */
+    private boolean relayData = false;
+
+    private int connectTimeout = 5000;
+    private int dataTimeout = 30000;
+    private long healthCheckInterval = 5000;
+
+    private ListeningThread listeningThread;
+    private HealthThread healthThread;
+
+    /** @param port The port where the router listens */
+    public FTPRouter(int port) {
+        this(port, 160);
+    }
+
+    /** @param port The port where the router listens
+     * @param replicas Number of points of each server on the hash ring */
+    public FTPRouter(int port, int replicas) {
+        this.port = port;
+        ring = new HashRing(replicas);
+    }
+
+    /** Add a server receiving sessions, about 1/n of the users move to it
+     *
+     * @param host The address of the server, also used for the data connections
+     * @param port The control port of the server */
+    public Backend addBackend(String host, int port) {
+        Backend backend = new Backend(host, port);
+        backends.add(backend);
+        ring.add(backend);
+        return backend;
+    }
+
+    /** Stop sending new sessions to a server, the current ones continue */
+    public void removeBackend(Backend backend) {
+        ring.remove(backend);
+        backends.remove(backend);
+    }
+
+    public List<Backend> getBackends() {
+        return Collections.unmodifiableList(new ArrayList<>(backends));
+    }
+
+    HashRing getRing() {
+        return ring;
+    }
+
+    /** @param relayData Whether the data connections go through the router,
+     *                  otherwise the clients connect to the servers directly */
+    public void setRelayData(boolean relayData) {
+        this.relayData = relayData;
+    }
+
+    public boolean isRelayData() {
+        return relayData;
+    }
+
+    /** @param timeout Time allowed to connect to a server, in milliseconds */
+    public void setConnectTimeout(int timeout) {
+        connectTimeout = timeout;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /** @param timeout Time allowed to the client to open a relayed data connection, in milliseconds */
+    public void setDataTimeout(int timeout) {
+        dataTimeout = timeout;
+    }
+
+    public int getDataTimeout() {
+        return dataTimeout;
+    }
+
+    /** @param interval Time between two health checks of the servers in milliseconds, 0 to never check them.
+     *                 Used when the router starts listening */
+    public void setHealthCheckInterval(long interval) {
+        healthCheckInterval = interval;
+    }
+
+    /** Listen for incoming connections */
+    public void listen() throws IOException {
+        if (server != null) throw new IOException("Router already started");
+
+        server = new ServerSocket();
+        server.bind(new InetSocketAddress(port));
+
+        listeningThread = new ListeningThread();
+        listeningThread.start();
+
+        if (healthCheckInterval > 0) {
+            healthThread = new HealthThread(healthCheckInterval);
+            healthThread.setDaemon(true);
+            healthThread.start();
+        }
+
+        Log.i(TAG, "Routing port " + server.getLocalPort() + " to " + backends.size() + " servers");
+    }
+
+    /** @return The port where the router listens */
+    public int getPort() {
+        return server != null ? server.getLocalPort() : port;
+    }
+
+    /** Check that a server accepts connections and greets them
+     *
+     * @return Whether the server is up */
+    boolean check(Backend backend) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(backend.getHost(), backend.getPort()), connectTimeout);
+            socket.setSoTimeout(connectTimeout);
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+            String greeting = reader.readLine();
+
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.ISO_8859_1);
+            writer.write("QUIT\r\n");
+            writer.flush();
+
+            return greeting != null && greeting.startsWith("220");
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (healthThread != null) healthThread.interrupt();
+        if (server != null) server.close();
+        server = null;
+        Log.i(TAG, "Router closed");
+    }
+
+    class ListeningThread extends Thread {
+
+        ListeningThread() {
+            super(TAG);
+        }
+
+        @Override
+        public void run() {
+            ServerSocket socket = server;
+            while (!socket.isClosed()) {
+                try {
+                    new RouterSession(FTPRouter.this, socket.accept()).start();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    class HealthThread extends Thread {
+
+        private final long interval;
+
+        HealthThread(long interval) {
+            super(TAG + "-health");
+            this.interval = interval;
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                for (Backend backend : backends) {
+                    boolean healthy = check(backend);
+
+                    if (healthy != backend.isHealthy())
+                        Log.i(TAG, backend.getName() + (healthy ? " is up" : " is down"));
+                    backend.setHealthy(healthy);
+                }
+
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package ftpserver.proxy;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring of the backends
+ *
+ * Each backend is placed on the ring many times, so the keys are spread evenly
+ * and adding or removing a backend only moves the keys of its own points. A key
+ * belongs to the first backend clockwise from its hash, skipping those that are down.
+ **/
+public class HashRing {
+
+    /** Points of each backend on the ring */
+    private final int replicas;
+
+    private final TreeMap<Long, Backend> ring = new TreeMap<>();
+
+    /** @param replicas Number of points of each backend on the ring */
+    public HashRing(int replicas) {
+        if (replicas <= 0) throw new IllegalArgumentException("Invalid number of replicas");
+        this.replicas = replicas;
+    }
+
+    public synchronized void add(Backend backend) {
+        for (int i = 0; i < replicas; i++)
+            ring.put(hash(backend.getName() + "#" + i), backend);
+    }
+
+    public synchronized void remove(Backend backend) {
+        for (int i = 0; i < replicas; i++)
+            ring.remove(hash(backend.getName() + "#" + i), backend);
+    }
+
+    /** @return The backend of a key, the next healthy one if it is down, null if none is healthy */
+    public synchronized Backend get(String key) {
+        if (ring.isEmpty()) return null;
+
+        long hash = hash(key);
+
+        // Walk clockwise from the key, wrapping around once
+        for (Map.Entry<Long, Backend> entry : ring.tailMap(hash).entrySet()) {
+            if (entry.getValue().isHealthy()) return entry.getValue();
+        }
+        for (Map.Entry<Long, Backend> entry : ring.headMap(hash).entrySet()) {
+            if (entry.getValue().isHealthy()) return entry.getValue();
+        }
+        return null;
+    }
+
+    /** @return The first 8 bytes of the MD5 of the key */
+    static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+
+            long hash = 0;
+            for (int i = 0; i < 8; i++)
+                hash = (hash << 8) | (digest[i] & 0xff);
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package ftpserver.proxy;
+
+import ftpserver.log.Log;
+
+import java.io.*;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Control connection of a client relayed by the router
+ *
+ * The client is greeted by the router until it sends USER, then the session is
+ * opened on the backend of the user and every line is relayed. The passive
+ * replies are rewritten so the data connections reach the same backend.
+ **/
+class RouterSession extends Thread {
+
+    public static final String TAG = "RouterSession";
+
+    private static final Pattern PASV_REPLY = Pattern.compile("(\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)");
+    private static final Pattern EPSV_REPLY = Pattern.compile("\\(\\|\\|\\|(\\d+)\\|\\)");
+
+    private final FTPRouter router;
+    private final Socket client;
+
+    private Socket backendSocket;
+
+    RouterSession(FTPRouter router, Socket client) {
+        super(TAG);
+        this.router = router;
+        this.client = client;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        Backend backend = null;
+        boolean counted = false;
+        Thread replies = null;
+
+        try {
+            // ISO-8859-1 maps every byte to a char, UTF-8 paths are relayed untouched
+            BufferedReader clientReader = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.ISO_8859_1));
+            Writer clientWriter = new OutputStreamWriter(client.getOutputStream(), StandardCharsets.ISO_8859_1);
+
+            reply(clientWriter, "220 Service ready");
+
+            String username = readUsername(clientReader, clientWriter);
+            if (username == null) return;
+
+            backend = router.getRing().get(username);
+            if (backend == null) {
+                reply(clientWriter, "421 No server available, closing control connection");
+                return;
+            }
+
+            backendSocket = new Socket();
+            backendSocket.connect(new InetSocketAddress(backend.getHost(), backend.getPort()), router.getConnectTimeout());
+            backend.sessionCounter().incrementAndGet();
+            counted = true;
+
+            BufferedReader backendReader = new BufferedReader(new InputStreamReader(backendSocket.getInputStream(), StandardCharsets.ISO_8859_1));
+            Writer backendWriter = new OutputStreamWriter(backendSocket.getOutputStream(), StandardCharsets.ISO_8859_1);
+
+            // The client was already greeted by the router
+            String greeting = readReply(backendReader);
+            if (greeting == null || !greeting.startsWith("2")) {
+                reply(clientWriter, "421 Server not ready, closing control connection");
+                return;
+            }
+
+            Log.i(TAG, "Session of " + username + " sent to " + backend.getName());
+            reply(backendWriter, "USER " + username);
+
+            Backend target = backend;
+            replies = new Thread(() -> relayReplies(backendReader, clientWriter, target), TAG + "-replies");
+            replies.setDaemon(true);
+            replies.start();
+
+            String line;
+            try {
+                while ((line = clientReader.readLine()) != null)
+                    reply(backendWriter, line);
+            } finally {
+                // The last replies of the backend are relayed before closing
+                try {
+                    backendSocket.shutdownOutput();
+                } catch (IOException ignored) {}
+                replies.join(router.getConnectTimeout());
+            }
+        } catch (IOException e) {
+            Log.i(TAG, "Session closed: " + e.getMessage());
+        } catch (InterruptedException ignored) {
+        } finally {
+            if (counted) backend.sessionCounter().decrementAndGet();
+            close();
+        }
+    }
+
+    /** Answer the client until it sends USER
+     *
+     * @return The username, null if the client left */
+    private String readUsername(BufferedReader reader, Writer writer) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int space = line.indexOf(' ');
+            String command = (space < 0 ? line : line.substring(0, space)).toUpperCase();
+
+            if (command.equals("USER") && space > 0) return line.substring(space + 1).trim();
+
+            if (command.equals("QUIT")) {
+                reply(writer, "221 Closing connection");
+                return null;
+            }
+
+            reply(writer, "530 Needs authentication");
+        }
+        return null;
+    }
+
+    /** @return The last line of a reply, null if the connection closed */
+    private static String readReply(BufferedReader reader) throws IOException {
+        String line = reader.readLine();
+        if (line == null || line.length() < 4 || line.charAt(3) != '-') return line;
+
+        // Multi-line reply, it ends with the code followed by a space
+        String end = line.substring(0, 3) + " ";
+        while ((line = reader.readLine()) != null && !line.startsWith(end)) ;
+        return line;
+    }
+
+    private void relayReplies(BufferedReader reader, Writer writer, Backend backend) {
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("227 ")) line = rewritePassive(line, backend);
+                else if (line.startsWith("229 ")) line = rewriteExtendedPassive(line, backend);
+
+                reply(writer, line);
+            }
+        } catch (IOException ignored) {
+        } finally {
+            close();
+        }
+    }
+
+    /** Send the client to the backend, or to a relay if the data is relayed */
+    private String rewritePassive(String line, Backend backend) throws IOException {
+        Matcher matcher = PASV_REPLY.matcher(line);
+        if (!matcher.find()) return line;
+
+        int port = Integer.parseInt(matcher.group(5)) * 256 + Integer.parseInt(matcher.group(6));
+
+        InetAddress address;
+        if (router.isRelayData()) {
+            address = client.getLocalAddress();
+            port = relay(backend, port).getLocalPort();
+        } else {
+            // The backend may announce an address only valid on its own network
+            address = InetAddress.getByName(backend.getHost());
+        }
+
+        if (!(address instanceof Inet4Address)) return line;
+
+        byte[] ip = address.getAddress();
+        String hostPort = (ip[0] & 0xff) + "," + (ip[1] & 0xff) + "," + (ip[2] & 0xff) + "," + (ip[3] & 0xff)
+                + "," + port / 256 + "," + port % 256;
+
+        return line.substring(0, matcher.start()) + hostPort + line.substring(matcher.end());
+    }
+
+    /** The client connects to the address of the control connection, the router, so the data is always relayed */
+    private String rewriteExtendedPassive(String line, Backend backend) throws IOException {
+        Matcher matcher = EPSV_REPLY.matcher(line);
+        if (!matcher.find()) return line;
+
+        int port = relay(backend, Integer.parseInt(matcher.group(1))).getLocalPort();
+
+        return line.substring(0, matcher.start()) + "(|||" + port + "|)" + line.substring(matcher.end());
+    }
+
+    private DataRelay relay(Backend backend, int port) throws IOException {
+        DataRelay relay = new DataRelay(client.getLocalAddress(), client.getInetAddress(), backend.getHost(), port,
+                router.getDataTimeout());
+        relay.start();
+        return relay;
+    }
+
+    private static void reply(Writer writer, String line) throws IOException {
+        synchronized (writer) {
+            writer.write(line + "\r\n");
+            writer.flush();
+        }
+    }
+
+    void close() {
+        try {
+            client.close();
+        } catch (IOException ignored) {}
+
+        if (backendSocket != null) {
+            try {
+                backendSocket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
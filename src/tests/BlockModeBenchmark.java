@@ -0,0 +1,161 @@
+package tests;
+
+import ftpserver.BlockInputStream;
+import ftpserver.BlockOutputStream;
+import ftpserver.FTPServer;
+import ftpserver.access.StandardAuthenticator;
+import ftpserver.file.FileHandler;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measure how many small files per second are downloaded and uploaded on loopback,
+ * with a data connection per file in stream mode and a single one in block mode
+ **/
+public class BlockModeBenchmark {
+
+    private static final int PORT = 6100;
+    private static final int FILES = 2000;
+    private static final int FILE_SIZE = 4096;
+
+    private static final Pattern PASV_REPLY = Pattern.compile("(\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)");
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : FILES;
+
+        File root = Files.createTempDirectory("ftp-block-benchmark").toFile();
+        byte[] content = new byte[FILE_SIZE];
+        new Random(0).nextBytes(content);
+        for (int i = 0; i < files; i++)
+            Files.write(new File(root, "file" + i).toPath(), content);
+
+        StandardAuthenticator auth = new StandardAuthenticator();
+        auth.addCredential("user", "password");
+
+        FTPServer server = new FTPServer(auth, new FileHandler(root), PORT);
+        server.listen();
+
+        try (Client client = new Client()) {
+            // Warm up both paths first
+            client.retrieve(false, Math.min(files, 200));
+            client.retrieve(true, Math.min(files, 200));
+
+            run("Stream RETR", files, () -> client.retrieve(false, files));
+            run("Block RETR", files, () -> client.retrieve(true, files));
+            run("Stream STOR", files, () -> client.store(false, files, content));
+            run("Block STOR", files, () -> client.store(true, files, content));
+        }
+
+        System.exit(0);
+    }
+
+    private static void run(String name, int files, Transfers transfers) throws IOException {
+        long start = System.nanoTime();
+        transfers.run();
+        long time = System.nanoTime() - start;
+
+        System.out.printf("%-12s %6d files %10.0f files/s %8.1f MB/s%n",
+                name, files, files * 1e9 / time, (double) files * FILE_SIZE * 1e3 / time);
+    }
+
+    private interface Transfers {
+        void run() throws IOException;
+    }
+
+    /**
+     * Minimal client, just enough to transfer files in both modes
+     **/
+    private static class Client implements Closeable {
+
+        private final Socket control;
+        private final BufferedReader reader;
+        private final Writer writer;
+
+        private final byte[] buffer = new byte[64 * 1024];
+
+        Client() throws IOException {
+            control = new Socket("127.0.0.1", PORT);
+            control.setTcpNoDelay(true);
+            reader = new BufferedReader(new InputStreamReader(control.getInputStream(), StandardCharsets.UTF_8));
+            writer = new OutputStreamWriter(control.getOutputStream(), StandardCharsets.UTF_8);
+
+            reply();
+            command("USER user");
+            command("PASS password");
+            command("TYPE I");
+        }
+
+        /** @return The last line of the reply */
+        String reply() throws IOException {
+            String line;
+            do {
+                line = reader.readLine();
+                if (line == null) throw new EOFException("Control connection closed");
+            } while (line.length() < 4 || line.charAt(3) != ' ' || !Character.isDigit(line.charAt(0)));
+
+            if (line.charAt(0) == '4' || line.charAt(0) == '5') throw new IOException(line);
+            return line;
+        }
+
+        String command(String command) throws IOException {
+            writer.write(command + "\r\n");
+            writer.flush();
+            return reply();
+        }
+
+        Socket openData() throws IOException {
+            Matcher matcher = PASV_REPLY.matcher(command("PASV"));
+            if (!matcher.find()) throw new IOException("Bad PASV reply");
+
+            Socket socket = new Socket("127.0.0.1", Integer.parseInt(matcher.group(5)) * 256 + Integer.parseInt(matcher.group(6)));
+            socket.setTcpNoDelay(true);
+            return socket;
+        }
+
+        void retrieve(boolean block, int files) throws IOException {
+            command(block ? "MODE B" : "MODE S");
+            Socket data = block ? openData() : null;
+
+            for (int i = 0; i < files; i++) {
+                if (!block) data = openData();
+
+                command("RETR file" + i);
+                InputStream in = block ? new BlockInputStream(data.getInputStream()) : data.getInputStream();
+                while (in.read(buffer) != -1);
+                in.close();
+                reply();
+            }
+
+            if (block) data.close();
+        }
+
+        void store(boolean block, int files, byte[] content) throws IOException {
+            command(block ? "MODE B" : "MODE S");
+            Socket data = block ? openData() : null;
+
+            for (int i = 0; i < files; i++) {
+                if (!block) data = openData();
+
+                command("STOR upload" + i);
+                OutputStream out = block ? new BlockOutputStream(data.getOutputStream(), 0, 0) : data.getOutputStream();
+                out.write(content);
+                out.close();
+                reply();
+            }
+
+            if (block) data.close();
+        }
+
+        @Override
+        public void close() throws IOException {
+            command("QUIT");
+            control.close();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package tests;
+
+import ftpserver.access.FileAuthenticator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measure how many logins per second the file authenticator verifies,
+ * with every hash computed and with the successful logins cached
+ **/
+public class LoginBenchmark {
+
+    private static final int USERS = 200;
+    private static final int CLIENTS = 64;
+    private static final int LOGINS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : FileAuthenticator.DEFAULT_ITERATIONS;
+
+        File file = File.createTempFile("users", ".txt");
+        file.deleteOnExit();
+
+        try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+            for (int i = 0; i < USERS; i++)
+                writer.println(FileAuthenticator.createUser("user" + i, "password" + i, iterations));
+        }
+
+        try (FileAuthenticator auth = new FileAuthenticator(file)) {
+            auth.setCacheTtl(0);
+            run("Hashed", auth, LOGINS / 10);
+
+            auth.setCacheTtl(60000);
+            run("Warm-up", auth, USERS);
+            run("Cached", auth, LOGINS * 100);
+        }
+    }
+
+    private static void run(String name, FileAuthenticator auth, int logins) throws InterruptedException, IOException {
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        AtomicInteger failed = new AtomicInteger();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < logins; i++) {
+            int user = i % USERS;
+            clients.execute(() -> {
+                if (!auth.authenticate(null, "user" + user, "password" + user))
+                    failed.incrementAndGet();
+            });
+        }
+
+        clients.shutdown();
+        clients.awaitTermination(1, TimeUnit.HOURS);
+        long time = System.nanoTime() - start;
+
+        System.out.printf("%-8s %8d logins %10.0f logins/s %6d failed%n",
+                name, logins, logins * 1e9 / time, failed.get());
+    }
+}
@@ -0,0 +1,52 @@
+package tests;
+
+import ftpserver.FTPServer;
+import ftpserver.access.StandardAuthenticator;
+import ftpserver.file.FileHandler;
+import ftpserver.proxy.Backend;
+import ftpserver.proxy.FTPRouter;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Start several servers on loopback behind a router
+ *
+ * Every server has its own root directory, the users are spread over them by
+ * the router listening on port 6000. Pass "relay" to relay the data connections
+ * through the router too.
+ **/
+public class RouterDemo {
+
+    private static final int SERVERS = 3;
+    private static final int FIRST_PORT = 6001;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        File root = new File(System.getProperty("java.io.tmpdir"), "ftp-router-demo");
+
+        StandardAuthenticator auth = new StandardAuthenticator();
+        for (int i = 1; i <= 10; i++)
+            auth.addCredential("user" + i, "password");
+
+        FTPRouter router = new FTPRouter(6000);
+        router.setRelayData(args.length > 0 && args[0].equals("relay"));
+
+        for (int i = 0; i < SERVERS; i++) {
+            File dir = new File(root, "server" + i);
+            dir.mkdirs();
+
+            FTPServer server = new FTPServer(auth, new FileHandler(dir), FIRST_PORT + i);
+            server.listen();
+            router.addBackend("127.0.0.1", FIRST_PORT + i);
+        }
+
+        router.listen();
+
+        // Show where the sessions go
+        while (true) {
+            Thread.sleep(10000);
+            for (Backend backend : router.getBackends())
+                System.out.println(backend);
+        }
+    }
+}